@@ -11,6 +11,37 @@ public class ConfigLoader {
         public int clientBodyLimitBytes;
         public String errorPagesDir;
         public List<Route> routes = new ArrayList<>();
+
+        // admission control (0 = unlimited / disabled)
+        public int maxConnections;
+        public int maxConnectionsPerPort;
+        public int shedLatencyMs;
+        public int retryAfterSeconds;
+        public int acceptBatch = 64;//max accepts per wakeup and listener
+
+        // per client address token bucket (0 = disabled); routes may add their own
+        public int rateLimitPerSecond;
+        public int rateLimitBurst;
+        public int rateLimitTableSize;
+
+        // TLS ports (also listened on) and the server session cache shared by their contexts
+        public List<TlsPort> tls = new ArrayList<>();
+        public int tlsSessionCacheSize;
+        public int tlsSessionTimeoutSeconds;
+        public boolean tlsSessionTickets;
+
+        // shared response cache for routes with cache set (0 bytes = disabled)
+        public int responseCacheBytes;
+        public int responseCacheMaxEntryBytes;
+        public int responseCacheStaleSeconds;//stale-while-revalidate when the response names none
+    }
+
+    public static final class TlsPort {
+        public int port;
+        public String keystore;
+        public String keystorePassword;
+        public String keystoreType = "PKCS12";
+        public Boolean sessionTickets;//null: tlsSessionTickets; JSSE has one switch per JVM, so it must agree
     }
 
     public static final class Route {
@@ -23,7 +54,18 @@ public class ConfigLoader {
         public String redirectTo;
         public int redirectCode = 302;
         public boolean upload;
+        public long uploadMaxFileBytes;
+        public long uploadMaxTotalBytes;
         public String cgiExt;
+        // reverse proxy: host:port upstreams, balanced "round-robin" or "least-conn"
+        public List<String> proxyPass = new ArrayList<>();
+        public String proxyBalance = "round-robin";
+        public int proxyConnectTimeoutMs = 3000;
+        public int proxyReadTimeoutMs = 10000;
+        public int proxyMaxIdle = 32;//idle keep-alive connections kept per upstream
+        public int rateLimitPerSecond;
+        public int rateLimitBurst;
+        public boolean cache;//GET/HEAD responses with max-age or s-maxage go through the response cache
     }
 
     public static Config load(Path path) throws Exception {
@@ -39,10 +81,39 @@ public class ConfigLoader {
         cfg.errorPagesDir = str(o, "errorPagesDir", "err");
         cfg.clientBodyLimitBytes = num(o, "clientBodyLimitBytes", 1024 * 1024);
         cfg.defaultServerPort = num(o, "defaultServerPort", 8080);
+        cfg.maxConnections = num(o, "maxConnections", 0);
+        cfg.maxConnectionsPerPort = num(o, "maxConnectionsPerPort", 0);
+        cfg.shedLatencyMs = num(o, "shedLatencyMs", 0);
+        cfg.retryAfterSeconds = num(o, "retryAfterSeconds", 5);
+        cfg.acceptBatch = num(o, "acceptBatch", 64);
+        cfg.rateLimitPerSecond = num(o, "rateLimitPerSecond", 0);
+        cfg.rateLimitBurst = num(o, "rateLimitBurst", cfg.rateLimitPerSecond);
+        cfg.rateLimitTableSize = num(o, "rateLimitTableSize", 65536);
 
         List<Object> ports = arr(o, "ports");
         for (Object p : ports)
             cfg.ports.add(((Number) p).intValue());
+        for (Object t0 : arr(o, "tls")) {
+            if (!(t0 instanceof Map))
+                continue;
+            @SuppressWarnings("unchecked")
+            Map<String, Object> t = (Map<String, Object>) t0;
+            TlsPort tp = new TlsPort();
+            tp.port = num(t, "port", 0);
+            tp.keystore = str(t, "keystore", null);
+            tp.keystorePassword = str(t, "keystorePassword", "");
+            tp.keystoreType = str(t, "keystoreType", "PKCS12");
+            tp.sessionTickets = t.get("sessionTickets") instanceof Boolean ? (Boolean) t.get("sessionTickets") : null;
+            cfg.tls.add(tp);
+            if (!cfg.ports.contains(tp.port))
+                cfg.ports.add(tp.port);
+        }
+        cfg.tlsSessionCacheSize = num(o, "tlsSessionCacheSize", 20000);
+        cfg.tlsSessionTimeoutSeconds = num(o, "tlsSessionTimeoutSeconds", 86400);
+        cfg.tlsSessionTickets = bool(o, "tlsSessionTickets", true);
+        cfg.responseCacheBytes = num(o, "responseCacheBytes", 0);
+        cfg.responseCacheMaxEntryBytes = num(o, "responseCacheMaxEntryBytes", 1024 * 1024);
+        cfg.responseCacheStaleSeconds = num(o, "responseCacheStaleSeconds", 10);
         if (cfg.ports.isEmpty())
             throw new IllegalArgumentException("ports must not be empty");
         List<Object> routes = arr(o, "routes");
@@ -64,8 +135,22 @@ public class ConfigLoader {
             }
 
             rt.upload = bool(r, "upload", false);
+            rt.uploadMaxFileBytes = lnum(r, "uploadMaxFileBytes", cfg.clientBodyLimitBytes);
+            rt.uploadMaxTotalBytes = lnum(r, "uploadMaxTotalBytes", rt.uploadMaxFileBytes);
             if (r.containsKey("cgiExt"))
                 rt.cgiExt = str(r, "cgiExt", null);
+            Object pp = r.get("proxyPass");
+            if (pp instanceof String)
+                rt.proxyPass.add((String) pp);
+            for (Object u : arr(r, "proxyPass"))
+                rt.proxyPass.add(String.valueOf(u));
+            rt.proxyBalance = str(r, "proxyBalance", "round-robin");
+            rt.proxyConnectTimeoutMs = num(r, "proxyConnectTimeoutMs", 3000);
+            rt.proxyReadTimeoutMs = num(r, "proxyReadTimeoutMs", 10000);
+            rt.proxyMaxIdle = num(r, "proxyMaxIdle", 32);
+            rt.rateLimitPerSecond = num(r, "rateLimitPerSecond", 0);
+            rt.rateLimitBurst = num(r, "rateLimitBurst", rt.rateLimitPerSecond);
+            rt.cache = bool(r, "cache", false);
 
             List<Object> ms = r.containsKey("methods") ? (List<Object>) r.get("methods") : List.of();
             for (Object m : ms)
@@ -81,9 +166,43 @@ public class ConfigLoader {
             throw new IllegalArgumentException("host missing");
         if (cfg.clientBodyLimitBytes <= 0)
             throw new IllegalArgumentException("clientBodyLimitBytes must be >0");
+        if (cfg.maxConnections < 0 || cfg.maxConnectionsPerPort < 0 || cfg.shedLatencyMs < 0)
+            throw new IllegalArgumentException("connection limits must be >=0");
+        if (cfg.retryAfterSeconds < 0)
+            throw new IllegalArgumentException("retryAfterSeconds must be >=0");
+        if (cfg.acceptBatch <= 0)
+            throw new IllegalArgumentException("acceptBatch must be >0");
+        if (cfg.rateLimitPerSecond < 0 || cfg.rateLimitTableSize <= 0 || (cfg.rateLimitPerSecond > 0 && cfg.rateLimitBurst <= 0))
+            throw new IllegalArgumentException("rate limits must be >=0, burst and table size >0");
+        for (TlsPort t : cfg.tls) {
+            if (t.port <= 0 || t.keystore == null)
+                throw new IllegalArgumentException("tls entries need port and keystore");
+            if (t.sessionTickets != null && t.sessionTickets != cfg.tlsSessionTickets)
+                throw new IllegalArgumentException("tls port " + t.port
+                        + ": sessionTickets cannot differ from tlsSessionTickets, session tickets are JVM-wide");
+        }
+        if (cfg.tlsSessionCacheSize < 0 || cfg.tlsSessionTimeoutSeconds < 0)
+            throw new IllegalArgumentException("tls session cache settings must be >=0");
+        if (cfg.responseCacheBytes < 0 || cfg.responseCacheMaxEntryBytes <= 0 || cfg.responseCacheStaleSeconds < 0)
+            throw new IllegalArgumentException("response cache sizes must be >=0, max entry >0");
         for (Route r : cfg.routes) {
             if (r.pathPrefix == null || !r.pathPrefix.startsWith("/"))
                 throw new IllegalArgumentException("route.pathPrefix must start with /");
+            if (r.upload && (r.uploadMaxFileBytes <= 0 || r.uploadMaxTotalBytes <= 0))
+                throw new IllegalArgumentException("route upload limits must be >0");
+            for (String u : r.proxyPass) {
+                int colon = u.lastIndexOf(':');
+                if (colon <= 0 || colon == u.length() - 1 || !u.substring(colon + 1).chars().allMatch(Character::isDigit))
+                    throw new IllegalArgumentException("route.proxyPass entries must be host:port");
+            }
+            if (!r.proxyBalance.equals("round-robin") && !r.proxyBalance.equals("least-conn"))
+                throw new IllegalArgumentException("route.proxyBalance must be round-robin or least-conn");
+            if (r.proxyConnectTimeoutMs <= 0 || r.proxyReadTimeoutMs <= 0 || r.proxyMaxIdle < 0)
+                throw new IllegalArgumentException("route proxy timeouts must be >0");
+            if (r.rateLimitPerSecond < 0 || (r.rateLimitPerSecond > 0 && r.rateLimitBurst <= 0))
+                throw new IllegalArgumentException("route rate limits must be >=0, burst >0");
+            if (r.cache && cfg.responseCacheBytes == 0)
+                throw new IllegalArgumentException("route.cache needs responseCacheBytes >0");
         }
     }
 
@@ -97,6 +216,11 @@ public class ConfigLoader {
         return (v instanceof Number) ? ((Number) v).intValue() : def;
     }
 
+    private static long lnum(Map<String, Object> o, String k, long def) {
+        Object v = o.get(k);
+        return (v instanceof Number) ? ((Number) v).longValue() : def;
+    }
+
     private static boolean bool(Map<String, Object> o, String k, boolean def) {
         Object v = o.get(k);
         return (v instanceof Boolean) ? (Boolean) v : def;
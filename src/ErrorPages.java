@@ -9,7 +9,8 @@ public class ErrorPages {
             case 404 -> "Not Found";
             case 405 -> "Method Not Allowed";
             case 413 -> "Payload Too Large";
-            default -> "Internal Server Error";
+            case 500 -> "Internal Server Error";
+            default -> ResponseEncoder.reasonPhrase(code);
         };
         try {
             Path p = Path.of(cfg.errorPagesDir, code+".html");
@@ -0,0 +1,452 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// RFC 7541 header compression. Malformed input surfaces as IllegalArgumentException (COMPRESSION_ERROR).
+public class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // RFC 7541 Appendix B, index 256 is EOS
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    // binary decode tree: node 0 is the root, children < 0 are leaves holding ~symbol
+    private static final int[][] HUFFMAN_TREE = buildTree();
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_PAIRS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            if (!STATIC_TABLE[i][1].isEmpty())
+                STATIC_PAIRS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+
+    private static int[][] buildTree() {
+        int[][] tree = new int[512][2];
+        int nodes = 1;
+        for (int sym = 0; sym < HUFFMAN_CODES.length; sym++) {
+            int code = HUFFMAN_CODES[sym];
+            int len = HUFFMAN_LENGTHS[sym];
+            int node = 0;
+            for (int b = len - 1; b > 0; b--) {
+                int bit = (code >>> b) & 1;
+                if (tree[node][bit] == 0)
+                    tree[node][bit] = nodes++;
+                node = tree[node][bit];
+            }
+            tree[node][code & 1] = ~sym;
+        }
+        return tree;
+    }
+
+    // Ring buffer of entries, index 0 is the most recently inserted.
+    static final class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int head;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int length() {
+            return count;
+        }
+
+        String name(int i) {
+            return names[(head + i) % names.length];
+        }
+
+        String value(int i) {
+            return values[(head + i) % names.length];
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(0);
+        }
+
+        void add(String name, String value) {
+            int entry = entrySize(name, value);
+            if (entry > maxSize) {
+                evict(maxSize);
+                return;
+            }
+            evict(entry);
+            if (count == names.length)
+                grow();
+            head = (head - 1 + names.length) % names.length;
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entry;
+        }
+
+        private void evict(int room) {
+            while (count > 0 && size + room > maxSize) {
+                int last = (head + count - 1) % names.length;
+                size -= entrySize(names[last], values[last]);
+                names[last] = null;
+                values[last] = null;
+                count--;
+            }
+        }
+
+        private void grow() {
+            String[] n = new String[names.length * 2];
+            String[] v = new String[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                n[i] = name(i);
+                v[i] = value(i);
+            }
+            names = n;
+            values = v;
+            head = 0;
+        }
+
+        static int entrySize(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+    }
+
+    static final class Decoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int maxTableSize;
+        private final int maxHeaderListSize;
+
+        Decoder(int maxTableSize, int maxHeaderListSize) {
+            this.maxTableSize = maxTableSize;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        void decode(ByteBuffer in, BiConsumer<String, String> out) {
+            int listSize = 0;
+            boolean headerSeen = false;
+            while (in.hasRemaining()) {
+                int b = in.get(in.position()) & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    int idx = readInt(in, 7);
+                    name = nameAt(idx);
+                    value = valueAt(idx);
+                } else if ((b & 0x40) != 0) {
+                    int idx = readInt(in, 6);
+                    name = idx == 0 ? readString(in) : nameAt(idx);
+                    value = readString(in);
+                    table.add(name, value);
+                } else if ((b & 0x20) != 0) {
+                    if (headerSeen)
+                        throw new IllegalArgumentException("table size update after header");
+                    int max = readInt(in, 5);
+                    if (max > maxTableSize)
+                        throw new IllegalArgumentException("table size update too large");
+                    table.setMaxSize(max);
+                    continue;
+                } else {
+                    // literal without indexing / never indexed share the 4-bit prefix layout
+                    int idx = readInt(in, 4);
+                    name = idx == 0 ? readString(in) : nameAt(idx);
+                    value = readString(in);
+                }
+                headerSeen = true;
+                listSize += DynamicTable.entrySize(name, value);
+                if (listSize > maxHeaderListSize)
+                    throw new IllegalArgumentException("header list too large");
+                out.accept(name, value);
+            }
+        }
+
+        private String nameAt(int idx) {
+            if (idx <= 0)
+                throw new IllegalArgumentException("bad index " + idx);
+            if (idx <= STATIC_TABLE.length)
+                return STATIC_TABLE[idx - 1][0];
+            idx -= STATIC_TABLE.length + 1;
+            if (idx >= table.length())
+                throw new IllegalArgumentException("bad index");
+            return table.name(idx);
+        }
+
+        private String valueAt(int idx) {
+            if (idx <= STATIC_TABLE.length)
+                return idx > 0 ? STATIC_TABLE[idx - 1][1] : "";
+            return table.value(idx - STATIC_TABLE.length - 1);
+        }
+
+        private static String readString(ByteBuffer in) {
+            if (!in.hasRemaining())
+                throw new IllegalArgumentException("truncated string");
+            boolean huffman = (in.get(in.position()) & 0x80) != 0;
+            int len = readInt(in, 7);
+            if (len > in.remaining())
+                throw new IllegalArgumentException("truncated string");
+            if (!huffman) {
+                byte[] raw = new byte[len];
+                in.get(raw);
+                return new String(raw, StandardCharsets.ISO_8859_1);
+            }
+            return huffmanDecode(in, len);
+        }
+
+        private static String huffmanDecode(ByteBuffer in, int len) {
+            StringBuilder sb = new StringBuilder(len * 8 / 5);
+            int node = 0;
+            int depth = 0;
+            boolean allOnes = true;
+            for (int i = 0; i < len; i++) {
+                int b = in.get() & 0xff;
+                for (int bit = 7; bit >= 0; bit--) {
+                    int v = (b >>> bit) & 1;
+                    int next = HUFFMAN_TREE[node][v];
+                    allOnes &= v == 1;
+                    depth++;
+                    if (next < 0) {
+                        int sym = ~next;
+                        if (sym == 256)
+                            throw new IllegalArgumentException("EOS in string");
+                        sb.append((char) sym);
+                        node = 0;
+                        depth = 0;
+                        allOnes = true;
+                    } else if (next == 0) {
+                        throw new IllegalArgumentException("bad huffman code");
+                    } else {
+                        node = next;
+                    }
+                }
+            }
+            if (depth > 7 || !allOnes)
+                throw new IllegalArgumentException("bad huffman padding");
+            return sb.toString();
+        }
+    }
+
+    // Indexes repeatable fields into the peer's dynamic table, literal (non-huffman) strings otherwise.
+    static final class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final Map<String, Long> dynamicPairs = new HashMap<>();
+        private long inserted;
+        private int pendingTableSize = -1;
+
+        // called when the peer's SETTINGS_HEADER_TABLE_SIZE changes
+        void setMaxTableSize(int size) {
+            size = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (size == table.maxSize)
+                return;
+            table.setMaxSize(size);
+            pendingTableSize = size;
+        }
+
+        void beginBlock(ByteArrayOutputStream out) {
+            if (pendingTableSize >= 0) {
+                writeInt(out, 0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+        }
+
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            String pair = name + '\0' + value;
+            Integer st = STATIC_PAIRS.get(pair);
+            if (st != null) {
+                writeInt(out, 0x80, 7, st);
+                return;
+            }
+            Long id = dynamicPairs.get(pair);
+            if (id != null) {
+                long pos = inserted - 1 - id;
+                if (pos < table.length()) {
+                    writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + (int) pos);
+                    return;
+                }
+                dynamicPairs.remove(pair);
+            }
+            Integer nameIdx = STATIC_NAMES.get(name);
+            boolean index = indexable(name) && DynamicTable.entrySize(name, value) <= table.maxSize / 2;
+            if (index) {
+                writeInt(out, 0x40, 6, nameIdx != null ? nameIdx : 0);
+                table.add(name, value);
+                dynamicPairs.put(pair, inserted++);
+                if (dynamicPairs.size() > table.length() * 2)
+                    dynamicPairs.values().removeIf(v -> inserted - 1 - v >= table.length());
+            } else {
+                writeInt(out, name.equals("set-cookie") ? 0x10 : 0x00, 4, nameIdx != null ? nameIdx : 0);
+            }
+            if (nameIdx == null)
+                writeString(out, name);
+            writeString(out, value);
+        }
+
+        private static boolean indexable(String name) {
+            return switch (name) {
+                case "content-length", "date", "etag", "last-modified", "set-cookie", "location" -> false;
+                default -> true;
+            };
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++)
+                out.write((byte) s.charAt(i));
+        }
+    }
+
+    static int readInt(ByteBuffer in, int prefixBits) {
+        int mask = (1 << prefixBits) - 1;
+        int v = in.get() & mask;
+        if (v < mask)
+            return v;
+        int shift = 0;
+        while (true) {
+            if (!in.hasRemaining())
+                throw new IllegalArgumentException("truncated integer");
+            int b = in.get() & 0xff;
+            v += (b & 0x7f) << shift;
+            if (v < 0 || shift > 21)
+                throw new IllegalArgumentException("integer overflow");
+            if ((b & 0x80) == 0)
+                return v;
+            shift += 7;
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int v) {
+        int mask = (1 << prefixBits) - 1;
+        if (v < mask) {
+            out.write(flags | v);
+            return;
+        }
+        out.write(flags | mask);
+        v -= mask;
+        while (v >= 0x80) {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+}
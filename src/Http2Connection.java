@@ -0,0 +1,809 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+// One HTTP/2 connection (RFC 9113) on top of a reactor-owned socket. Frames in through onInput,
+// frames out through the sink; every stream is answered by the same handler as HTTP/1.1.
+public class Http2Connection {
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final int MAX_FRAME_SIZE = 16 * 1024;
+    static final utils.BufferPool FRAME_POOL = new utils.BufferPool(MAX_FRAME_SIZE + 9, 256);
+
+    // frame types
+    private static final int DATA = 0x0, HEADERS = 0x1, PRIORITY = 0x2, RST_STREAM = 0x3, SETTINGS = 0x4,
+            PUSH_PROMISE = 0x5, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    // flags
+    private static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20;
+    // error codes
+    private static final int PROTOCOL_ERROR = 0x1, INTERNAL_ERROR = 0x2, FLOW_CONTROL_ERROR = 0x3,
+            STREAM_CLOSED = 0x5, FRAME_SIZE_ERROR = 0x6, REFUSED_STREAM = 0x7, COMPRESSION_ERROR = 0x9;
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1, SETTINGS_ENABLE_PUSH = 0x2,
+            SETTINGS_MAX_CONCURRENT_STREAMS = 0x3, SETTINGS_INITIAL_WINDOW_SIZE = 0x4,
+            SETTINGS_MAX_FRAME_SIZE = 0x5, SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+    private static final int DEFAULT_WINDOW = 65_535;
+    // Output queued for the socket, every frame counted. DATA is only framed below MAX_QUEUED_BYTES; past
+    // READ_PAUSE_BYTES (frames answering the peer's own: PING and SETTINGS acks, RST_STREAM, HEADERS) the
+    // reactor stops reading until the peer takes its output, so a client that sends but never reads is bounded.
+    private static final int MAX_QUEUED_BYTES = 256 * 1024;
+    private static final int READ_PAUSE_BYTES = 512 * 1024;
+
+    private final Function<HttpModels.Request, Response> handler;
+    private final Consumer<ByteBuffer> sink;
+    private final Runnable wake;//frames were queued outside onInput/pump, the reactor must start writing
+    private final ConfigLoader.Config cfg;
+    String remoteAddr;
+
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    private final ArrayDeque<Stream> sending = new ArrayDeque<>();
+
+    private boolean prefaceReceived;
+    private int lastStreamId;
+    private long queuedBytes;
+    private boolean goingAway;
+    private boolean peerGoingAway;//peer sent GOAWAY: no new streams, the open ones still finish
+
+    // header block being assembled across CONTINUATION frames
+    private int continuationStream;
+    private int continuationFlags;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private long connSendWindow = DEFAULT_WINDOW;
+    // Inbound flow control. The connection window is the memory bound: it starts at maxBufferedBody and is
+    // only given back once body bytes leave the connection (handed to the handler, dropped or discarded).
+    // Stream windows reopen as their data is taken in.
+    private final long maxBufferedBody;
+    private long connRecvWindow;
+    private long connUnacked;
+    private long bufferedBody;//request body bytes held by streams still being received
+    private int awaitingResponses;//pending responses (proxied streams) not completed yet
+
+    static final class Stream {
+        final int id;
+        final HttpModels.Request request = new HttpModels.Request();
+        final HttpParser.ByteArrayOutput body = new HttpParser.ByteArrayOutput(1024);
+        boolean headersDone;
+        boolean remoteClosed;
+        boolean tooLarge;
+        long sendWindow;
+        int recvWindow = DEFAULT_WINDOW;
+        int recvUnacked;
+
+        // response body still to be framed, either buffered or pulled from a producer
+        byte[] out;
+        int outPos;
+        Response.BodyProducer producer;
+
+        Stream(int id, long sendWindow) {
+            this.id = id;
+            this.sendWindow = sendWindow;
+        }
+    }
+
+    public Http2Connection(Function<HttpModels.Request, Response> handler, Consumer<ByteBuffer> sink, Runnable wake,
+            ConfigLoader.Config cfg) {
+        this.handler = handler;
+        this.sink = sink;
+        this.wake = wake;
+        this.cfg = cfg;
+        // one maximum sized body per connection however many streams share it, plus a frame so a body
+        // running over the limit is seen (and answered 413) before the window closes
+        this.maxBufferedBody = Math.min((long) cfg.clientBodyLimitBytes + MAX_FRAME_SIZE, Integer.MAX_VALUE);
+        this.connRecvWindow = Math.max(maxBufferedBody, DEFAULT_WINDOW);
+        writeSettings();
+        if (connRecvWindow > DEFAULT_WINDOW)
+            writeWindowUpdate(0, (int) (connRecvWindow - DEFAULT_WINDOW));
+    }
+
+    static boolean isUpgradeRequest(HttpModels.Request req) {
+        String upgrade = req.headers.getOrDefault("upgrade", "");
+        String connection = req.headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT);
+        return upgrade.equalsIgnoreCase("h2c") && connection.contains("upgrade") && req.headers.containsKey("http2-settings");
+    }
+
+    // h2c Upgrade (RFC 7540 3.2): answers 101, then the HTTP/1.1 request becomes half-closed stream 1.
+    // Returns null, having written nothing, when HTTP2-Settings is malformed.
+    public static Http2Connection upgrade(Function<HttpModels.Request, Response> handler, Consumer<ByteBuffer> sink,
+            Runnable wake, ConfigLoader.Config cfg, HttpModels.Request req) {
+        byte[] settings;
+        try {
+            settings = Base64.getUrlDecoder().decode(req.headers.get("http2-settings").trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (settings.length % 6 != 0)
+            return null;
+        sink.accept(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+        Http2Connection c = new Http2Connection(handler, sink, wake, cfg);
+        c.remoteAddr = req.remoteAddr;
+        if (!c.applySettings(ByteBuffer.wrap(settings)))
+            return c;
+        Stream s = new Stream(1, c.peerInitialWindow);
+        s.headersDone = true;
+        s.remoteClosed = true;
+        c.lastStreamId = 1;
+        c.streams.put(1, s);
+        req.version = "HTTP/2.0";
+        c.respond(s, req);
+        return c;
+    }
+
+    // does the buffer start with (a prefix of) the client connection preface?
+    static boolean maybePreface(ByteBuffer in) {
+        int n = Math.min(in.remaining(), PREFACE.length);
+        for (int i = 0; i < n; i++)
+            if (in.get(in.position() + i) != PREFACE[i])
+                return false;
+        return true;
+    }
+
+    public boolean isClosed() {
+        return goingAway || (peerGoingAway && streams.isEmpty());
+    }
+
+    // true while so much output is queued that the reactor should stop reading
+    public boolean outputBacklogged() {
+        return queuedBytes >= READ_PAUSE_BYTES;
+    }
+
+    // true while a stream waits on a pending response, which the proxy's own timeouts bound
+    public boolean awaitingResponses() {
+        return awaitingResponses > 0;
+    }
+
+    // Consumes every complete frame in the buffer; partial frames are left for the next read.
+    public void onInput(ByteBuffer in) {
+        if (goingAway) {
+            in.position(in.limit());
+            return;
+        }
+        if (!prefaceReceived) {
+            if (in.remaining() < PREFACE.length)
+                return;
+            for (byte b : PREFACE) {
+                if (in.get() != b) {
+                    goAway(PROTOCOL_ERROR);
+                    return;
+                }
+            }
+            prefaceReceived = true;
+        }
+        while (!goingAway && in.remaining() >= 9) {
+            int p = in.position();
+            int len = ((in.get(p) & 0xff) << 16) | ((in.get(p + 1) & 0xff) << 8) | (in.get(p + 2) & 0xff);
+            if (len > MAX_FRAME_SIZE) {
+                goAway(FRAME_SIZE_ERROR);
+                return;
+            }
+            if (in.remaining() < 9 + len)
+                break;
+            int type = in.get(p + 3) & 0xff;
+            int flags = in.get(p + 4) & 0xff;
+            int streamId = in.getInt(p + 5) & 0x7fffffff;
+            ByteBuffer payload = in.slice(p + 9, len);
+            in.position(p + 9 + len);
+            try {
+                onFrame(type, flags, streamId, payload);
+            } catch (IllegalArgumentException e) {
+                goAway(COMPRESSION_ERROR);
+            } catch (RuntimeException e) {
+                goAway(PROTOCOL_ERROR);
+            }
+        }
+        pump();
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) {
+        if (continuationStream != 0 && (type != CONTINUATION || streamId != continuationStream)) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        switch (type) {
+            case DATA -> onData(flags, streamId, payload);
+            case HEADERS -> onHeaders(flags, streamId, payload);
+            case CONTINUATION -> onContinuation(flags, streamId, payload);
+            case PRIORITY -> {
+                if (streamId == 0 || payload.remaining() != 5)
+                    goAway(PROTOCOL_ERROR);
+            }
+            case RST_STREAM -> {
+                if (streamId == 0 || payload.remaining() != 4) {
+                    goAway(PROTOCOL_ERROR);
+                    return;
+                }
+                Stream s = streams.get(streamId);
+                if (s != null)
+                    drop(s);
+            }
+            case SETTINGS -> onSettings(flags, streamId, payload);
+            case PING -> {
+                if (streamId != 0 || payload.remaining() != 8) {
+                    goAway(PROTOCOL_ERROR);
+                    return;
+                }
+                if ((flags & ACK) == 0) {
+                    byte[] opaque = new byte[8];
+                    payload.get(opaque);
+                    writeFrame(PING, ACK, 0, opaque, 0, 8);
+                }
+            }
+            case GOAWAY -> {
+                if (streamId != 0) {
+                    goAway(PROTOCOL_ERROR);
+                    return;
+                }
+                if (payload.remaining() < 8) {
+                    goAway(FRAME_SIZE_ERROR);
+                    return;
+                }
+                // we never open streams, so everything the peer started is still answered
+                peerGoingAway = true;
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, payload);
+            case PUSH_PROMISE -> goAway(PROTOCOL_ERROR);
+            default -> {
+                // unknown frame types must be ignored
+            }
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        payload = unpad(flags, payload);
+        if (payload == null)
+            return;
+        if ((flags & PRIORITY_FLAG) != 0) {
+            if (payload.remaining() < 5) {
+                goAway(FRAME_SIZE_ERROR);
+                return;
+            }
+            payload.position(payload.position() + 5);
+        }
+        headerBlock.reset();
+        headerBlock.writeBytes(copy(payload));
+        if ((flags & END_HEADERS) == 0) {
+            continuationStream = streamId;
+            continuationFlags = flags;
+            return;
+        }
+        onHeaderBlock(flags, streamId);
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0 || streamId != continuationStream) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        if (headerBlock.size() + payload.remaining() > MAX_HEADER_LIST_SIZE) {
+            goAway(COMPRESSION_ERROR);
+            return;
+        }
+        headerBlock.writeBytes(copy(payload));
+        if ((flags & END_HEADERS) != 0) {
+            continuationStream = 0;
+            onHeaderBlock(continuationFlags, streamId);
+        }
+    }
+
+    private void onHeaderBlock(int flags, int streamId) {
+        ByteBuffer block = ByteBuffer.wrap(headerBlock.toByteArray());
+        Stream s = streams.get(streamId);
+        if (s == null) {
+            if (streamId <= lastStreamId || (streamId & 1) == 0) {
+                goAway(PROTOCOL_ERROR);
+                return;
+            }
+            lastStreamId = streamId;
+            if (streams.size() >= MAX_CONCURRENT_STREAMS || peerGoingAway) {
+                // still decode so the HPACK state stays in sync
+                decoder.decode(block, (k, v) -> {});
+                resetStream(streamId, REFUSED_STREAM);
+                return;
+            }
+            s = new Stream(streamId, peerInitialWindow);
+            streams.put(streamId, s);
+            Stream stream = s;
+            decoder.decode(block, (k, v) -> addHeader(stream.request, k, v));
+            s.headersDone = true;
+        } else if (s.remoteClosed) {
+            decoder.decode(block, (k, v) -> {});
+            resetStream(streamId, STREAM_CLOSED);
+            return;
+        } else {
+            // trailers
+            decoder.decode(block, (k, v) -> {});
+            if ((flags & END_STREAM) == 0) {
+                resetStream(streamId, PROTOCOL_ERROR);
+                return;
+            }
+        }
+        if ((flags & END_STREAM) != 0)
+            onRequestComplete(s);
+    }
+
+    private static void addHeader(HttpModels.Request req, String name, String value) {
+        switch (name) {
+            case ":method" -> req.method = value;
+            case ":path" -> req.target = value;
+            case ":authority" -> req.headers.put("host", value);
+            case ":scheme" -> {}
+            default -> {
+                if (name.startsWith(":"))
+                    return;
+                // repeated fields (e.g. split cookies) are folded like HTTP/1.1 would
+                req.headers.merge(name, value, (a, b) -> name.equals("cookie") ? a + "; " + b : a + ", " + b);
+            }
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) {
+        if (streamId == 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        // padding counts against flow control too
+        int frameLen = payload.remaining();
+        if (frameLen > connRecvWindow) {
+            goAway(FLOW_CONTROL_ERROR);
+            return;
+        }
+        connRecvWindow -= frameLen;
+        payload = unpad(flags, payload);
+        if (payload == null)
+            return;
+        int n = payload.remaining();
+        Stream s = streams.get(streamId);
+        if (s == null || s.remoteClosed) {
+            if (streamId > lastStreamId) {
+                goAway(PROTOCOL_ERROR);
+                return;
+            }
+            resetStream(streamId, STREAM_CLOSED);
+            releaseConnection(frameLen);
+            return;
+        }
+        if (frameLen > s.recvWindow) {
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+            releaseConnection(frameLen);
+            return;
+        }
+        s.recvWindow -= frameLen;
+        if (!s.tooLarge && s.body.size() + n > cfg.clientBodyLimitBytes) {
+            // the rest is read and dropped so the 413 can follow END_STREAM
+            s.tooLarge = true;
+            releaseBody(s);
+        }
+        if (s.tooLarge) {
+            releaseConnection(frameLen);
+        } else {
+            s.body.write(copy(payload));
+            bufferedBody += n;
+            releaseConnection(frameLen - n);
+        }
+        if ((flags & END_STREAM) != 0) {
+            onRequestComplete(s);
+        } else {
+            s.recvUnacked += frameLen;
+            if (s.recvUnacked >= DEFAULT_WINDOW / 2) {
+                writeWindowUpdate(streamId, s.recvUnacked);
+                s.recvWindow += s.recvUnacked;
+                s.recvUnacked = 0;
+            }
+        }
+        // Window spent and every buffered body still incomplete: nothing can make progress, so the stream
+        // holding the most is refused (the client may retry it) to let the others finish.
+        if (connRecvWindow == 0 && connUnacked == 0 && bufferedBody > 0) {
+            Stream largest = null;
+            for (Stream o : streams.values())
+                if (!o.remoteClosed && (largest == null || o.body.size() > largest.body.size()))
+                    largest = o;
+            if (largest != null)
+                resetStream(largest.id, REFUSED_STREAM);
+        }
+    }
+
+    // frees a stream's buffered body and gives its share of the connection window back
+    private void releaseBody(Stream s) {
+        int n = s.body.size();
+        if (n == 0)
+            return;
+        bufferedBody -= n;
+        s.body.reset();
+        releaseConnection(n);
+    }
+
+    // Reopens the connection window by n consumed bytes, in batches unless the window is running low.
+    private void releaseConnection(int n) {
+        connUnacked += n;
+        if (connUnacked > 0 && (connUnacked >= DEFAULT_WINDOW / 2 || connRecvWindow < DEFAULT_WINDOW / 2)) {
+            writeWindowUpdate(0, (int) connUnacked);
+            connRecvWindow += connUnacked;
+            connUnacked = 0;
+        }
+    }
+
+    private void onRequestComplete(Stream s) {
+        s.remoteClosed = true;
+        HttpModels.Request req = s.request;
+        if (req.method == null || req.target == null) {
+            resetStream(s.id, PROTOCOL_ERROR);
+            return;
+        }
+        req.version = "HTTP/2.0";
+        req.remoteAddr = remoteAddr;
+        int q = req.target.indexOf('?');
+        req.path = utils.PathUtil.normalizePath(req.target, q >= 0 ? q : req.target.length());
+        req.query = q >= 0 ? req.target.substring(q + 1) : "";
+        req.body = s.body.toByteArray();
+        releaseBody(s);
+        if (req.path == null) {
+            send(s, ErrorPages.response(cfg, 400));
+            return;
+        }
+        if (s.tooLarge) {
+            send(s, ErrorPages.response(cfg, 413));
+            return;
+        }
+        respond(s, req);
+    }
+
+    private void respond(Stream s, HttpModels.Request req) {
+        send(s, handler.apply(req));
+    }
+
+    private void send(Stream s, Response res) {
+        if (res.pending != null) {
+            awaitingResponses++;
+            res.pending.onComplete(r -> {
+                awaitingResponses--;
+                if (streams.get(s.id) != s || goingAway) {
+                    if (r.producer != null)
+                        r.producer.close();
+                    return;
+                }
+                send(s, r);
+                pump();
+                wake.run();
+            });
+            return;
+        }
+        ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+        encoder.beginBlock(block);
+        encoder.encode(block, ":status", String.valueOf(res.status));
+        boolean hasLength = false;
+        boolean hasDate = false;
+        for (var e : res.headers.entrySet()) {
+            String name = e.getKey().toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" -> {
+                    continue;
+                }
+                case "content-length" -> hasLength = true;
+                case "date" -> hasDate = true;
+                default -> {}
+            }
+            encoder.encode(block, name, e.getValue());
+        }
+        if (res.repeatedHeaders != null)
+            for (var e : res.repeatedHeaders)
+                encoder.encode(block, e.getKey().toLowerCase(Locale.ROOT), e.getValue());
+        if (!hasLength && res.producer == null)
+            encoder.encode(block, "content-length", String.valueOf(res.body.length));
+        if (!hasDate) {
+            byte[] line = ResponseEncoder.dateLine();
+            encoder.encode(block, "date", new String(line, 6, line.length - 8, StandardCharsets.ISO_8859_1));
+        }
+        encoder.encode(block, "server", "LocalServer/1.0");
+
+        boolean empty = res.producer == null && res.body.length == 0;
+        writeHeaderBlock(s.id, block.toByteArray(), empty);
+        if (empty) {
+            streams.remove(s.id);
+            return;
+        }
+        s.out = res.body;
+        s.outPos = 0;
+        s.producer = res.producer;
+        if (s.producer != null) {
+            s.producer.onReady(() -> {
+                if (streams.get(s.id) == s) {
+                    pump();
+                    wake.run();
+                }
+            });
+        }
+        sending.add(s);
+    }
+
+    private void writeHeaderBlock(int streamId, byte[] bytes, boolean endStream) {
+        int off = 0;
+        int type = HEADERS;
+        do {
+            int n = Math.min(bytes.length - off, peerMaxFrameSize);
+            int flags = (off + n == bytes.length ? END_HEADERS : 0) | (type == HEADERS && endStream ? END_STREAM : 0);
+            writeFrame(type, flags, streamId, bytes, off, n);
+            off += n;
+            type = CONTINUATION;
+        } while (off < bytes.length);
+    }
+
+    // Frames pending response bodies round-robin, one frame per stream per turn, within flow control windows.
+    public void pump() {
+        int idle = 0;
+        while (!sending.isEmpty() && queuedBytes < MAX_QUEUED_BYTES && connSendWindow > 0 && idle < sending.size()) {
+            Stream s = sending.poll();
+            int room = (int) Math.min(peerMaxFrameSize, Math.min(connSendWindow, s.sendWindow));
+            if (room <= 0) {
+                sending.add(s);
+                idle++;
+                continue;
+            }
+            boolean progressed = s.producer != null ? pumpProducer(s, room) : pumpBuffered(s, room);
+            idle = progressed ? 0 : idle + 1;
+        }
+    }
+
+    private boolean pumpBuffered(Stream s, int room) {
+        int n = Math.min(s.out.length - s.outPos, room);
+        boolean last = s.outPos + n == s.out.length;
+        writeFrame(DATA, last ? END_STREAM : 0, s.id, s.out, s.outPos, n);
+        s.outPos += n;
+        s.sendWindow -= n;
+        connSendWindow -= n;
+        if (last)
+            streams.remove(s.id);
+        else
+            sending.add(s);
+        return true;
+    }
+
+    // the producer writes straight into the frame buffer behind the 9 byte frame header
+    private boolean pumpProducer(Stream s, int room) {
+        ByteBuffer buf = FRAME_POOL.acquire();
+        buf.position(9).limit(9 + room);
+        boolean more;
+        try {
+            more = s.producer.produce(buf);
+        } catch (Exception e) {
+            FRAME_POOL.release(buf);
+            resetStream(s.id, INTERNAL_ERROR);
+            return true;
+        }
+        int n = buf.position() - 9;
+        Map<String, String> trailers = more ? Map.of() : s.producer.trailers();
+        boolean endStream = !more && trailers.isEmpty();
+        if (n > 0 || endStream) {
+            buf.limit(buf.capacity());
+            putFrameHeader(buf, n, DATA, endStream ? END_STREAM : 0, s.id);
+            buf.limit(9 + n).position(0);
+            queue(buf);
+            s.sendWindow -= n;
+            connSendWindow -= n;
+        } else {
+            FRAME_POOL.release(buf);
+        }
+        if (more) {
+            sending.add(s);
+            return n > 0;
+        }
+        if (!trailers.isEmpty()) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+            encoder.beginBlock(block);
+            for (var e : trailers.entrySet())
+                encoder.encode(block, e.getKey().toLowerCase(Locale.ROOT), e.getValue());
+            writeHeaderBlock(s.id, block.toByteArray(), true);
+        }
+        s.producer.close();
+        streams.remove(s.id);
+        return true;
+    }
+
+    // The reactor calls this for every buffer it finished writing, before recycling it. Frames start at
+    // position 0, so the limit is the frame's length; the 101 of an upgrade was never counted, hence the floor.
+    public void onFrameWritten(ByteBuffer frame) {
+        queuedBytes = Math.max(0, queuedBytes - frame.limit());
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) {
+        if (streamId != 0) {
+            goAway(PROTOCOL_ERROR);
+            return;
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.hasRemaining())
+                goAway(FRAME_SIZE_ERROR);
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            goAway(FRAME_SIZE_ERROR);
+            return;
+        }
+        if (!applySettings(payload))
+            return;
+        writeFrame(SETTINGS, ACK, 0, new byte[0], 0, 0);
+    }
+
+    private boolean applySettings(ByteBuffer payload) {
+        while (payload.remaining() >= 6) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE -> {
+                    if (value < 0) {//over 2^31-1, no table is that large
+                        goAway(PROTOCOL_ERROR);
+                        return false;
+                    }
+                    encoder.setMaxTableSize(value);
+                }
+                case SETTINGS_ENABLE_PUSH -> {
+                    if (value != 0 && value != 1) {
+                        goAway(PROTOCOL_ERROR);
+                        return false;
+                    }
+                }
+                case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                    if (value < 0) {
+                        goAway(FLOW_CONTROL_ERROR);
+                        return false;
+                    }
+                    int delta = value - peerInitialWindow;
+                    peerInitialWindow = value;
+                    for (Stream s : streams.values()) {
+                        s.sendWindow += delta;
+                        if (s.sendWindow > Integer.MAX_VALUE) {//RFC 9113 6.9.2
+                            goAway(FLOW_CONTROL_ERROR);
+                            return false;
+                        }
+                    }
+                }
+                case SETTINGS_MAX_FRAME_SIZE -> {
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        goAway(PROTOCOL_ERROR);
+                        return false;
+                    }
+                    // never frame larger than our pool buffers
+                    peerMaxFrameSize = Math.min(value, MAX_FRAME_SIZE);
+                }
+                default -> {}
+            }
+        }
+        return true;
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) {
+        if (payload.remaining() != 4) {
+            goAway(FRAME_SIZE_ERROR);
+            return;
+        }
+        int inc = payload.getInt() & 0x7fffffff;
+        if (inc == 0) {
+            if (streamId == 0)
+                goAway(PROTOCOL_ERROR);
+            else
+                resetStream(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        if (streamId == 0) {
+            connSendWindow += inc;
+            if (connSendWindow > Integer.MAX_VALUE)
+                goAway(FLOW_CONTROL_ERROR);
+            return;
+        }
+        Stream s = streams.get(streamId);
+        if (s == null)
+            return;
+        s.sendWindow += inc;
+        if (s.sendWindow > Integer.MAX_VALUE)
+            resetStream(streamId, FLOW_CONTROL_ERROR);
+    }
+
+    private ByteBuffer unpad(int flags, ByteBuffer payload) {
+        if ((flags & PADDED) == 0)
+            return payload;
+        if (!payload.hasRemaining()) {
+            goAway(PROTOCOL_ERROR);
+            return null;
+        }
+        int pad = payload.get() & 0xff;
+        if (pad > payload.remaining()) {
+            goAway(PROTOCOL_ERROR);
+            return null;
+        }
+        payload.limit(payload.limit() - pad);
+        return payload;
+    }
+
+    private void resetStream(int streamId, int code) {
+        Stream s = streams.get(streamId);
+        if (s != null)
+            drop(s);
+        writeFrame(RST_STREAM, 0, streamId, intBytes(code), 0, 4);
+    }
+
+    private void goAway(int code) {
+        if (goingAway)
+            return;
+        byte[] p = new byte[8];
+        System.arraycopy(intBytes(lastStreamId), 0, p, 0, 4);
+        System.arraycopy(intBytes(code), 0, p, 4, 4);
+        writeFrame(GOAWAY, 0, 0, p, 0, 8);
+        goingAway = true;
+        close();
+    }
+
+    // the reactor calls this when the socket goes away
+    public void close() {
+        for (Stream s : streams.values())
+            if (s.producer != null)
+                s.producer.close();
+        streams.clear();
+        sending.clear();
+        bufferedBody = 0;
+    }
+
+    private void drop(Stream s) {
+        streams.remove(s.id);
+        releaseBody(s);
+        sending.remove(s);
+        if (s.producer != null)
+            s.producer.close();
+    }
+
+    private void writeSettings() {
+        ByteBuffer p = ByteBuffer.allocate(18);
+        p.putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        p.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        p.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        writeFrame(SETTINGS, 0, 0, p.array(), 0, 18);
+    }
+
+    private void writeWindowUpdate(int streamId, int inc) {
+        writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(inc), 0, 4);
+    }
+
+    // DATA goes in a pooled maximum-size buffer, everything else in a heap buffer of its own size
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int off, int len) {
+        ByteBuffer buf = type == DATA ? FRAME_POOL.acquire() : ByteBuffer.allocate(9 + len);
+        putFrameHeader(buf, len, type, flags, streamId);
+        buf.position(9);
+        buf.put(payload, off, len);
+        queue(buf.flip());
+    }
+
+    private void queue(ByteBuffer frame) {
+        queuedBytes += frame.remaining();
+        sink.accept(frame);
+    }
+
+    private static void putFrameHeader(ByteBuffer buf, int len, int type, int flags, int streamId) {
+        buf.put(0, (byte) (len >>> 16)).put(1, (byte) (len >>> 8)).put(2, (byte) len);
+        buf.put(3, (byte) type).put(4, (byte) flags).putInt(5, streamId & 0x7fffffff);
+    }
+
+    private static byte[] copy(ByteBuffer b) {
+        byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    private static byte[] intBytes(int v) {
+        return new byte[] {(byte) (v >>> 24), (byte) (v >>> 16), (byte) (v >>> 8), (byte) v};
+    }
+}
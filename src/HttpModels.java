@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class HttpModels {
@@ -10,6 +11,21 @@ public class HttpModels {
 
         public Map<String, String> headers=new HashMap<>();
         public byte[] body= new byte[0];
+        public BodySink bodySink;//set when the body was streamed to a sink instead of buffered
+        public String remoteAddr;
+    }
+
+    // Receives a request body incrementally as it is read off the socket.
+    public interface BodySink{
+        // false aborts the request with errorStatus()
+        boolean write(ByteBuffer chunk);
+        // end of body; false aborts the request with errorStatus()
+        boolean finish();
+        // drops anything written so far
+        void abort();
+        int errorStatus();
+        // true while the sink cannot take more; the connection stops reading until resume runs
+        default boolean backlogged(){return false;}
+        default void onDrained(Runnable resume){}
     }
 }
- 
\ No newline at end of file
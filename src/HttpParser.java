@@ -1,6 +1,7 @@
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Function;
 
 public class HttpParser {
     enum Status {OK,NEED_MORE,ERROR}
@@ -8,40 +9,61 @@ public class HttpParser {
 
     Stage stage = Stage.START;
     long stageStarMs=System.currentTimeMillis();
+    //for the JFR events only
+    private long stageNanos=System.nanoTime();
+    private long requestNanos;
 
     private HttpModels.Request current;
-    private int contentLength=0;
+    private long bodyRemaining=0;
 
     //chunked 
     private int chunkedRemaining=-1;
+    private boolean chunkCrlfPending=false;
     private final ByteArrayOutput bodyAcc=new ByteArrayOutput(1024*16);
 
+    // opens a streaming sink for requests whose body must not be buffered, null to buffer
+    private final Function<HttpModels.Request, HttpModels.BodySink> sinks;
+    private HttpModels.BodySink sink;
+
+    public HttpParser(){this(null);}
+    HttpModels.BodySink activeSink(){return sink;}
+    String remoteAddr;//copied into every request
+    public HttpParser(Function<HttpModels.Request, HttpModels.BodySink> sinks){this.sinks=sinks;}
+
     public static final class ParseResult{
         public final Status status;
         public final HttpModels.Request request;
-        ParseResult(Status status, HttpModels.Request request){
+        public final int errorCode;
+        ParseResult(Status status, HttpModels.Request request, int errorCode){
             this.status=status;
             this.request=request;
+            this.errorCode=errorCode;
         }
         static ParseResult needMore(){
-            return new ParseResult(Status.NEED_MORE, null);
+            return new ParseResult(Status.NEED_MORE, null, 0);
         }
          static ParseResult error(){
-            return new ParseResult(Status.ERROR, null);
+            return error(400);
+        }
+         static ParseResult error(int code){
+            return new ParseResult(Status.ERROR, null, code);
         }
          static ParseResult ok(HttpModels.Request r){
-            return new ParseResult(Status.OK, r);
+            return new ParseResult(Status.OK, r, 0);
         }
     }
     public ParseResult parse(ByteBuffer in, int bodyLimitBytes){
         try{
             if(stage==Stage.START){
                 current=new HttpModels.Request();
-                stage=Stage.HEADERS;
-                stageStarMs=System.currentTimeMillis();
-                contentLength=0;
+                current.remoteAddr=remoteAddr;
+                enter(Stage.HEADERS);
+                requestNanos=stageNanos;
+                bodyRemaining=0;
                 chunkedRemaining=-1;
+                chunkCrlfPending=false;
                 bodyAcc.reset();
+                sink=null;
             }
             if(stage==Stage.HEADERS){
                 String headersBlock=readUntilDoubleCRLF(in);
@@ -49,66 +71,137 @@ public class HttpParser {
                     if(!parseStartLineHeaders(headersBlock,current))return ParseResult.error();
 
                     String te=current.headers.getOrDefault("transfer-encoding", "");
-                    if(te.toLowerCase().contains("chunked")){
-                        stage=Stage.CHUNKED;
-                        stageStarMs=System.currentTimeMillis();
+                    boolean chunked=te.toLowerCase().contains("chunked");
+                    String cl= current.headers.get("content-length");
+                    if(chunked || cl!=null){
+                        sink=(sinks==null)?null:sinks.apply(current);
+                    }
+                    if(chunked){
+                        enter(Stage.CHUNKED);
 
                     }else {
-                        String cl= current.headers.get("content-length");
-                        contentLength=(cl==null)?0:parseIntSafe(cl,-1);
-                        if(contentLength<0)return ParseResult.error();
-                        if(contentLength>bodyLimitBytes)return ParseResult.error();
+                        long contentLength=(cl==null)?0:parseLongSafe(cl);
+                        if(contentLength<0)return fail(400);
+                        // streamed bodies are bounded by their sink instead
+                        if(sink==null && contentLength>bodyLimitBytes)return fail(413);
                         if(contentLength==0){
-                            HttpModels.Request done=current;
-                            stage=Stage.START;
-                            return ParseResult.ok(done);
+                            return complete();
                         }
-                        stage=Stage.BODY;
-                        stageStarMs=System.currentTimeMillis();
+                        bodyRemaining=contentLength;
+                        enter(Stage.BODY);
                     }
                 }
                 if(stage==Stage.BODY){
-                    if(in.remaining()<contentLength)return ParseResult.needMore();
-                    byte[] body=new byte[contentLength];
-                    in.get(body);
-                    current.body=body;
-
-                    HttpModels.Request done=current;
-                    stage=Stage.START;
-                    return ParseResult.ok(done);
+                    int n=(int)Math.min(in.remaining(), bodyRemaining);
+                    if(n>0 && !consumeBody(in, n, bodyLimitBytes))return bodyRejected();
+                    bodyRemaining-=n;
+                    if(bodyRemaining>0)return ParseResult.needMore();
+                    return complete();
                 }
                 if(stage==Stage.CHUNKED){
                     while(true){
+                        if(chunkCrlfPending){
+                            if(in.remaining()<2)return ParseResult.needMore();
+                            byte c1 = in.get();
+                            byte c2 = in.get();
+                            if(c1!='\r' || c2!='\n')return fail(400);
+                            chunkCrlfPending=false;
+                        }
                         if(chunkedRemaining<0){
                             String line=readLineCRLF(in);
                             if(line==null)return ParseResult.needMore();
                             int semi=line.indexOf(";");
                             String hex =(semi>=0)?line.substring(0,semi):line;
                             chunkedRemaining=Integer.parseInt(hex.trim(),16);
-                            if(chunkedRemaining==0){
-                                String end = readUntilDoubleCRLF(in);
-                                if(end==null) return ParseResult.needMore();
-                                current.body=bodyAcc.toByteArray();
-                                HttpModels.Request done =current;
-                                stage=Stage.START;
-                                return ParseResult.ok(done);
+                            if(chunkedRemaining<0)return fail(400);
+                        }
+                        if(chunkedRemaining==0){
+                            // trailer section, ends with an empty line
+                            while(true){
+                                String trailer=readLineCRLF(in);
+                                if(trailer==null)return ParseResult.needMore();
+                                if(trailer.isEmpty())return complete();
                             }
                         }
-                        if(in.remaining()<chunkedRemaining+2)return ParseResult.needMore(); //+CRLF
-                        byte[] data=new byte[chunkedRemaining];
-                        in.get(data);
-                        bodyAcc.write(data);
-
-                        byte c1 = in.get();
-                        byte c2 = in.get();
-                        if(c1!='\r' || c2!='\n')return ParseResult.error();
+                        // chunk data may span reads: consume what is here
+                        int n=Math.min(in.remaining(), chunkedRemaining);
+                        if(n>0 && !consumeBody(in, n, bodyLimitBytes))return bodyRejected();
+                        chunkedRemaining-=n;
+                        if(chunkedRemaining>0)return ParseResult.needMore();
                         chunkedRemaining=-1;
+                        chunkCrlfPending=true;
                     }
                 }
                 return ParseResult.needMore();
         }catch(Exception e){
-            return ParseResult.error();
+            return fail(400);
+        }
+    }
+
+    private boolean consumeBody(ByteBuffer in, int n, int bodyLimitBytes){
+        if(sink!=null){
+            ByteBuffer chunk=in.slice(in.position(), n);
+            in.position(in.position()+n);
+            // streaming uploads may legitimately outlast BODY_TIMEOUT, only a stall should close them
+            stageStarMs=System.currentTimeMillis();
+            return sink.write(chunk);
+        }
+        if(bodyAcc.size()+n>bodyLimitBytes)return false;
+        bodyAcc.write(in, n);
+        return true;
+    }
+
+    private ParseResult complete(){
+        HttpModels.Request done=current;
+        if(sink!=null){
+            if(!sink.finish())return fail(sink.errorStatus());
+            done.bodySink=sink;
+        }else if(bodyAcc.size()>0){
+            done.body=bodyAcc.toByteArray();
         }
+        sink=null;
+        enter(Stage.START);
+        parsed(done, 0);
+        return ParseResult.ok(done);
+    }
+
+    private void enter(Stage next){
+        long now=System.nanoTime();
+        ServerEvents.ParserStage e=new ServerEvents.ParserStage();
+        if(e.isEnabled()){
+            e.from=stage.name();
+            e.to=next.name();
+            e.timeInStage=now-stageNanos;
+            e.commit();
+        }
+        stage=next;
+        stageNanos=now;
+        stageStarMs=System.currentTimeMillis();
+    }
+
+    private void parsed(HttpModels.Request req, int errorStatus){
+        ServerEvents.RequestParsed e=new ServerEvents.RequestParsed();
+        if(!e.isEnabled())return;
+        e.method=req==null?null:req.method;
+        e.path=req==null?null:req.path;
+        e.errorStatus=errorStatus;
+        e.parseTime=System.nanoTime()-requestNanos;
+        e.streamed=req!=null && req.bodySink!=null;
+        e.commit();
+    }
+
+    private ParseResult bodyRejected(){
+        return fail(sink!=null?sink.errorStatus():413);
+    }
+
+    // the connection is closed after an error, so only the sink needs cleaning up
+    private ParseResult fail(int code){
+        parsed(current, code);
+        if(sink!=null){
+            sink.abort();
+            sink=null;
+        }
+        return ParseResult.error(code);
     }
 
     private static boolean parseStartLineHeaders(String block, HttpModels.Request req){
@@ -139,16 +232,15 @@ public class HttpParser {
         //parse path/query
         String t=req.target;
         int q=t.indexOf('?');
-        req.path=(q>=0)?t.substring(0,q):t;
+        req.path=utils.PathUtil.normalizePath(t,(q>=0)?q:t.length());
         req.query=(q>=0)?t.substring(q+1):"";
-        req.path=utils.PathUtil.normallizeUrlPath(req.path);
-        return true;
+        return req.path!=null;
     }
-    private static int parseIntSafe(String s, int def){
+    private static long parseLongSafe(String s){
         try{
-            return Integer.parseInt(s.trim());
+            return Long.parseLong(s.trim());
         } catch(Exception e){
-            return def;
+            return -1;
         }
     }
 
@@ -188,6 +280,7 @@ public class HttpParser {
 
         ByteArrayOutput(int cap){buf =new byte[cap];}
         void reset(){size=0;}
+        int size(){return size;}
         void write(byte[] b){
             ensure(size+b.length);
             System.arraycopy(b, 0, buf, size, b.length);
@@ -200,6 +293,11 @@ public class HttpParser {
             while(n<cap)n*=2;
             buf=Arrays.copyOf(buf, n);
         }
+        void write(ByteBuffer in, int n){
+            ensure(size+n);
+            in.get(buf, size, n);
+            size+=n;
+        }
         byte[] toByteArray(){
             return Arrays.copyOf(buf, size);
         }
@@ -0,0 +1,705 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Reverse proxy for proxyPass routes. Upstream sockets are non-blocking and registered on the server's selector,
+// which hands their keys back to onReady. Idle keep-alive connections are pooled per upstream address.
+public class ProxyHandler {
+    private static final int IN_BUFFER_SIZE = 16 * 1024;//also the largest upstream response head
+    private static final int MAX_BACKLOG = 8;//queued request body buffers before the client is paused
+    private static final long POOL_IDLE_TIMEOUT_MS = 30_000;
+    private static final Set<String> HOP_BY_HOP = Set.of("connection", "keep-alive", "proxy-connection", "te",
+            "trailer", "transfer-encoding", "upgrade", "http2-settings", "proxy-authenticate", "proxy-authorization");
+    private static final Set<String> IDEMPOTENT = Set.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+
+    private final ConfigLoader.Config cfg;
+    private final Map<String, Upstream> upstreams = new HashMap<>();
+    private final Map<ConfigLoader.Route, Balancer> balancers = new IdentityHashMap<>();
+    private final Set<Conn> live = new LinkedHashSet<>();//every open upstream socket, for the timeout sweep
+    private Selector selector;
+
+    public ProxyHandler(ConfigLoader.Config cfg) {
+        this.cfg = cfg;
+        for (ConfigLoader.Route r : cfg.routes) {
+            if (r.proxyPass.isEmpty())
+                continue;
+            Upstream[] targets = new Upstream[r.proxyPass.size()];
+            for (int i = 0; i < targets.length; i++) {
+                Upstream u = upstreams.computeIfAbsent(r.proxyPass.get(i), Upstream::new);
+                u.maxIdle = Math.max(u.maxIdle, r.proxyMaxIdle);
+                targets[i] = u;
+            }
+            balancers.put(r, new Balancer(targets, r.proxyBalance.equals("least-conn")));
+        }
+    }
+
+    // the server registers upstream sockets on its own selector
+    public void attach(Selector selector) {
+        this.selector = selector;
+    }
+
+    static final class Upstream {
+        final String name;
+        final InetSocketAddress addr;
+        final ArrayDeque<Conn> idle = new ArrayDeque<>();
+        int maxIdle;
+        int active;//connections carrying an exchange
+
+        Upstream(String hostPort) {
+            int colon = hostPort.lastIndexOf(':');
+            this.name = hostPort;
+            this.addr = new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+        }
+    }
+
+    static final class Balancer {
+        private final Upstream[] targets;
+        private final boolean leastConn;
+        private int next;
+
+        Balancer(Upstream[] targets, boolean leastConn) {
+            this.targets = targets;
+            this.leastConn = leastConn;
+        }
+
+        // least-conn starts scanning at the round-robin cursor so ties still rotate
+        Upstream pick() {
+            Upstream best = targets[next];
+            if (leastConn) {
+                for (int i = 1; i < targets.length; i++) {
+                    Upstream u = targets[(next + i) % targets.length];
+                    if (u.active < best.active)
+                        best = u;
+                }
+            }
+            next = (next + 1) % targets.length;
+            return best;
+        }
+    }
+
+    // One upstream socket; the selection key's attachment.
+    static final class Conn {
+        final Upstream upstream;
+        final SocketChannel ch;
+        SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(IN_BUFFER_SIZE);//fill mode
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        boolean connected;
+        boolean eof;
+        Exchange exchange;//null while pooled
+        long deadlineMs;//connect or read deadline, 0 when not waiting on the upstream
+        long idleSinceMs;
+
+        Conn(Upstream upstream, SocketChannel ch) {
+            this.upstream = upstream;
+            this.ch = ch;
+        }
+    }
+
+    // Called by the parser once headers are in: the request body is relayed upstream as it arrives.
+    public HttpModels.BodySink open(ConfigLoader.Route route, HttpModels.Request req) {
+        return start(route, req, true);
+    }
+
+    public Response handle(ConfigLoader.Route route, HttpModels.Request req) {
+        Exchange ex;
+        if (req.bodySink instanceof Exchange) {
+            ex = (Exchange) req.bodySink;
+        } else {
+            // no body, or a buffered one (HTTP/2)
+            ex = start(route, req, false);
+            if (ex == null)
+                return ErrorPages.response(cfg, 502);
+            if (req.body.length > 0)
+                ex.write(ByteBuffer.wrap(req.body));
+            ex.finish();
+        }
+        return Response.pending(ex.pending);
+    }
+
+    private Exchange start(ConfigLoader.Route route, HttpModels.Request req, boolean streamed) {
+        Upstream up = balancers.get(route).pick();
+        Conn c = up.idle.pollFirst();
+        boolean pooled = c != null;
+        if (c == null && (c = connect(up, route)) == null)
+            return null;
+        up.active++;
+        boolean chunked = streamed && req.headers.getOrDefault("transfer-encoding", "").toLowerCase(Locale.ROOT).contains("chunked");
+        Exchange ex = new Exchange(c, route, "HEAD".equals(req.method), chunked);
+        // a buffered idempotent request can be sent again if the pooled connection turns out dead
+        if (pooled && !streamed && IDEMPOTENT.contains(req.method))
+            ex.replay = req;
+        c.exchange = ex;
+        c.out.add(requestHead(req, streamed, chunked));
+        interest(c);
+        return ex;
+    }
+
+    private Conn connect(Upstream up, ConfigLoader.Route route) {
+        Conn c = null;
+        try {
+            SocketChannel ch = SocketChannel.open();
+            ch.configureBlocking(false);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            c = new Conn(up, ch);
+            c.connected = ch.connect(up.addr);
+            c.key = ch.register(selector, c.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c);
+            live.add(c);
+            if (!c.connected)
+                c.deadlineMs = System.currentTimeMillis() + route.proxyConnectTimeoutMs;
+            return c;
+        } catch (IOException | RuntimeException e) {
+            if (c != null)
+                discard(c);
+            else
+                System.err.println("Upstream " + up.name + " unreachable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ByteBuffer requestHead(HttpModels.Request req, boolean streamed, boolean chunked) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(req.method).append(' ').append(req.target).append(" HTTP/1.1\r\n");
+        String host = req.headers.get("host");
+        if (host == null)
+            host = req.headers.getOrDefault(":authority", "");
+        sb.append("Host: ").append(host).append("\r\n");
+        for (var e : req.headers.entrySet()) {
+            String k = e.getKey();
+            if (HOP_BY_HOP.contains(k) || k.equals("host") || k.equals("content-length") || k.startsWith(":")
+                    || k.equals("x-forwarded-for"))
+                continue;
+            sb.append(k).append(": ").append(e.getValue()).append("\r\n");
+        }
+        if (req.remoteAddr != null) {
+            String prior = req.headers.get("x-forwarded-for");
+            sb.append("X-Forwarded-For: ").append(prior != null ? prior + ", " : "").append(req.remoteAddr).append("\r\n");
+        }
+        if (chunked)
+            sb.append("Transfer-Encoding: chunked\r\n");
+        else if (streamed)
+            sb.append("Content-Length: ").append(req.headers.getOrDefault("content-length", "0")).append("\r\n");
+        else if (req.body.length > 0 || !req.method.equals("GET") && !req.method.equals("HEAD"))
+            sb.append("Content-Length: ").append(req.body.length).append("\r\n");
+        sb.append("Connection: keep-alive\r\n\r\n");
+        return ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    // reactor entry point for upstream keys
+    public void onReady(SelectionKey key) {
+        Conn c = (Conn) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                if (!c.ch.finishConnect())
+                    return;
+                c.connected = true;
+                c.deadlineMs = (c.exchange != null && c.exchange.requestDone)
+                        ? System.currentTimeMillis() + c.exchange.route.proxyReadTimeoutMs : 0;
+            }
+            if (key.isValid() && key.isWritable())
+                flush(c);
+            if (key.isValid() && key.isReadable())
+                read(c);
+            if (c.key.isValid())
+                interest(c);
+        } catch (IOException | RuntimeException e) {
+            fail(c, 502);
+        }
+    }
+
+    private void flush(Conn c) throws IOException {
+        while (!c.out.isEmpty()) {
+            ByteBuffer b = c.out.peek();
+            c.ch.write(b);
+            if (b.hasRemaining())
+                break;
+            utils.BufferPool.recycle(c.out.poll());
+        }
+        Exchange ex = c.exchange;
+        if (ex != null && ex.drained != null && c.out.size() <= MAX_BACKLOG / 2) {
+            Runnable r = ex.drained;
+            ex.drained = null;
+            r.run();
+        }
+    }
+
+    private void read(Conn c) throws IOException {
+        int n = c.ch.read(c.in);
+        if (n < 0)
+            c.eof = true;
+        Exchange ex = c.exchange;
+        if (ex == null) {
+            // pooled connection closed (or spoke out of turn)
+            discard(c);
+            return;
+        }
+        if (n > 0)
+            ex.replay = null;//the upstream answered, whatever happens next is not a stale connection
+        // no read deadline while the buffer is full, that wait is on the client
+        if (n > 0 && !ex.finished)
+            c.deadlineMs = c.in.hasRemaining() ? System.currentTimeMillis() + ex.route.proxyReadTimeoutMs : 0;
+        ex.onUpstreamData();
+    }
+
+    // reads stop while the buffer is full, so a slow client throttles the upstream
+    private void interest(Conn c) {
+        if (!c.key.isValid())
+            return;
+        if (!c.connected) {
+            c.key.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        int ops = c.in.hasRemaining() && !c.eof ? SelectionKey.OP_READ : 0;
+        if (!c.out.isEmpty())
+            ops |= SelectionKey.OP_WRITE;
+        c.key.interestOps(ops);
+    }
+
+    // before the head was relayed the client gets an error page; after that its connection is cut
+    private void fail(Conn c, int status) {
+        Exchange ex = c.exchange;
+        discard(c);
+        if (ex == null)
+            return;
+        if (status == 502 && ex.retry())
+            return;
+        ex.broken = true;
+        if (!ex.headDone)
+            ex.pending.complete(ErrorPages.response(cfg, status));
+        ex.wake();
+    }
+
+    private void discard(Conn c) {
+        if (c.exchange != null) {
+            c.upstream.active--;
+            c.exchange = null;
+        }
+        c.upstream.idle.remove(c);
+        live.remove(c);
+        for (ByteBuffer b : c.out)
+            utils.BufferPool.recycle(b);
+        c.out.clear();
+        if (c.key != null)
+            c.key.cancel();
+        try {
+            c.ch.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // exchange fully relayed: keep the connection for the next request if the upstream allows it
+    private void release(Conn c, boolean reusable) {
+        reusable &= c.exchange.requestDone;//an early response leaves the request body half sent
+        c.exchange = null;
+        c.upstream.active--;
+        if (!reusable || c.eof || c.in.position() > 0 || !c.out.isEmpty() || c.upstream.idle.size() >= c.upstream.maxIdle) {
+            discard(c);
+            return;
+        }
+        c.deadlineMs = 0;
+        c.idleSinceMs = System.currentTimeMillis();
+        c.upstream.idle.addFirst(c);//most recently used first, the tail ages out
+        interest(c);
+    }
+
+    // reactor timeout sweep: connect/read deadlines answer 504, long idle pooled connections are closed
+    public void enforceTimeouts(long now) {
+        List<Conn> expired = null;
+        for (Conn c : live) {
+            boolean late = c.exchange != null ? c.deadlineMs > 0 && now > c.deadlineMs
+                    : now - c.idleSinceMs > POOL_IDLE_TIMEOUT_MS;
+            if (late) {
+                if (expired == null)
+                    expired = new ArrayList<>();
+                expired.add(c);
+            }
+        }
+        if (expired == null)
+            return;
+        for (Conn c : expired) {
+            ServerEvents.TimeoutClose e = new ServerEvents.TimeoutClose();
+            if (e.isEnabled()) {
+                e.reason = c.exchange == null ? "upstream idle" : c.connected ? "upstream read" : "upstream connect";
+                e.peer = c.upstream.name;
+                e.age = c.exchange == null ? now - c.idleSinceMs : now - c.deadlineMs
+                        + (c.connected ? c.exchange.route.proxyReadTimeoutMs : c.exchange.route.proxyConnectTimeoutMs);
+                e.commit();
+            }
+            if (c.exchange != null)
+                fail(c, 504);
+            else
+                discard(c);
+        }
+    }
+
+    // One proxied request: sink for the client's request body and producer of the upstream's response body.
+    final class Exchange implements HttpModels.BodySink, Response.BodyProducer {
+        private static final int NONE = 0, LENGTH = 1, CHUNKED = 2, UNTIL_CLOSE = 3;
+        private static final int CHUNK_SIZE = 0, CHUNK_DATA = 1, CHUNK_CRLF = 2, CHUNK_TRAILERS = 3;
+
+        final Response.Pending pending = new Response.Pending();
+        final ConfigLoader.Route route;
+        private Conn conn;
+        HttpModels.Request replay;//set while the request may be resent on a fresh connection
+        private final boolean headRequest;
+        private final boolean chunkedRequest;
+
+        boolean requestDone;
+        boolean headDone;
+        boolean finished;
+        boolean broken;
+        private boolean keepAlive;
+        private int bodyMode;
+        private long remaining;//LENGTH: body bytes left, CHUNKED: bytes left in the current chunk
+        private int chunkState;
+        private final Map<String, String> trailers = new LinkedHashMap<>();
+
+        private Runnable resume;
+        private boolean stalled;
+        Runnable drained;
+
+        Exchange(Conn conn, ConfigLoader.Route route, boolean headRequest, boolean chunkedRequest) {
+            this.conn = conn;
+            this.route = route;
+            this.headRequest = headRequest;
+            this.chunkedRequest = chunkedRequest;
+        }
+
+        // ---- request body, client -> upstream
+
+        @Override
+        public boolean write(ByteBuffer chunk) {
+            if (broken)
+                return false;
+            if (conn.exchange != this)
+                return true;//the upstream already answered, the rest of the body is dropped
+            while (chunk.hasRemaining()) {
+                ByteBuffer buf = Response.BODY_POOL.acquire();
+                int start = chunkedRequest ? ResponseEncoder.CHUNK_HEADER_RESERVE : 0;
+                buf.position(start);
+                if (chunkedRequest)
+                    buf.limit(buf.capacity() - ResponseEncoder.CHUNK_TRAILER_RESERVE);
+                int n = Math.min(buf.remaining(), chunk.remaining());
+                buf.put(chunk.slice(chunk.position(), n));
+                chunk.position(chunk.position() + n);
+                conn.out.add(chunkedRequest ? ResponseEncoder.frameChunk(buf) : buf.flip());
+            }
+            interest(conn);
+            return true;
+        }
+
+        @Override
+        public boolean finish() {
+            if (broken)
+                return false;
+            requestDone = true;
+            if (conn.exchange != this)
+                return true;
+            if (chunkedRequest)
+                conn.out.add(ResponseEncoder.lastChunk(Map.of()));
+            if (conn.connected && !headDone)
+                conn.deadlineMs = System.currentTimeMillis() + route.proxyReadTimeoutMs;
+            interest(conn);
+            return true;
+        }
+
+        @Override
+        public void abort() {
+            if (!broken && conn.exchange == this)
+                discard(conn);
+            broken = true;
+        }
+
+        @Override
+        public int errorStatus() {
+            return 502;
+        }
+
+        @Override
+        public boolean backlogged() {
+            return !broken && conn.out.size() > MAX_BACKLOG;
+        }
+
+        @Override
+        public void onDrained(Runnable resume) {
+            this.drained = resume;
+        }
+
+        // A pooled connection failed before any response byte: the upstream most likely closed it while idle,
+        // so the request goes once more over a new connection to the same upstream.
+        boolean retry() {
+            HttpModels.Request req = replay;
+            replay = null;
+            if (req == null || broken)
+                return false;
+            Conn c = connect(conn.upstream, route);
+            if (c == null)
+                return false;
+            c.upstream.active++;
+            c.exchange = this;
+            conn = c;
+            c.out.add(requestHead(req, false, false));
+            requestDone = false;
+            if (req.body.length > 0)
+                write(ByteBuffer.wrap(req.body));
+            return finish();
+        }
+
+        // ---- response, upstream -> client
+
+        void onUpstreamData() throws IOException {
+            if (!headDone) {
+                if (!parseHead())
+                    return;
+                if (bodyMode == NONE) {
+                    finished = true;
+                    release(conn, keepAlive);
+                    return;
+                }
+            }
+            if (conn.eof && bodyMode != UNTIL_CLOSE && !finished && conn.in.position() == 0)
+                throw new IOException("upstream closed mid-body");
+            if (stalled)
+                wake();
+        }
+
+        // false until the whole head is buffered; 1xx interim responses are dropped
+        private boolean parseHead() throws IOException {
+            while (true) {
+                ByteBuffer in = conn.in;
+                int end = -1;
+                for (int i = 0; i + 3 < in.position(); i++) {
+                    if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    if (conn.eof || !in.hasRemaining())
+                        throw new IOException(conn.eof ? "upstream closed before responding" : "upstream head too large");
+                    return false;
+                }
+                String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+                in.flip().position(end + 4);
+                in.compact();
+                String[] lines = head.split("\r\n");
+                String[] status = lines[0].split(" ", 3);
+                if (status.length < 2 || !status[0].startsWith("HTTP/1."))
+                    throw new IOException("bad upstream status line");
+                int code = Integer.parseInt(status[1]);
+                if (code >= 100 && code < 200)
+                    continue;
+
+                Response r = new Response();
+                r.status = code;
+                r.reason = status.length > 2 ? status[2] : ResponseEncoder.reasonPhrase(code);
+                String connection = "";
+                String te = "";
+                long length = -1;
+                for (int i = 1; i < lines.length; i++) {
+                    int idx = lines[i].indexOf(':');
+                    if (idx <= 0)
+                        continue;
+                    String name = lines[i].substring(0, idx).trim().toLowerCase(Locale.ROOT);
+                    String value = lines[i].substring(idx + 1).trim();
+                    switch (name) {
+                        case "connection" -> connection = value.toLowerCase(Locale.ROOT);
+                        case "transfer-encoding" -> te = value.toLowerCase(Locale.ROOT);
+                        case "content-length" -> {
+                            // a repeated or list-valued length leaves the framing ambiguous (RFC 9112 6.3)
+                            if (length >= 0 || !value.matches("\\d{1,18}"))
+                                throw new IOException("bad upstream Content-Length: " + value);
+                            length = Long.parseLong(value);
+                        }
+                        default -> {}
+                    }
+                    if (HOP_BY_HOP.contains(name))
+                        continue;
+                    if (name.equals("set-cookie"))
+                        r.addRepeatedHeader("Set-Cookie", value);
+                    else
+                        r.headers.merge(canonical(name), value, (a, b) -> a + ", " + b);
+                }
+                keepAlive = status[0].equals("HTTP/1.1") ? !connection.contains("close") : connection.contains("keep-alive");
+                if (headRequest || code == 204 || code == 304 || (length == 0 && !te.contains("chunked"))) {
+                    bodyMode = NONE;
+                } else if (te.contains("chunked")) {
+                    bodyMode = CHUNKED;
+                    chunkState = CHUNK_SIZE;
+                    r.headers.remove("Content-Length");
+                } else if (length > 0) {
+                    bodyMode = LENGTH;
+                    remaining = length;
+                } else {
+                    bodyMode = UNTIL_CLOSE;
+                    keepAlive = false;
+                }
+                if (bodyMode != NONE)
+                    r.producer = this;
+                headDone = true;
+                pending.complete(r);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean produce(ByteBuffer out) throws IOException {
+            if (broken)
+                throw new IOException("upstream failed");
+            ByteBuffer in = conn.in;
+            boolean wasFull = !in.hasRemaining();
+            int before = out.position();
+            in.flip();
+            try {
+                decode(in, out);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad upstream chunk size");
+            } finally {
+                in.compact();
+            }
+            if (!finished && bodyMode == UNTIL_CLOSE && conn.eof && in.position() == 0)
+                finished = true;
+            if (finished) {
+                if (conn.exchange == this)
+                    release(conn, keepAlive);
+                return false;
+            }
+            if (conn.eof && in.position() == 0)
+                throw new IOException("upstream closed mid-body");
+            if (wasFull && in.hasRemaining()) {
+                conn.deadlineMs = System.currentTimeMillis() + route.proxyReadTimeoutMs;
+                interest(conn);
+            }
+            stalled = out.position() == before;
+            return true;
+        }
+
+        private void decode(ByteBuffer in, ByteBuffer out) throws IOException {
+            switch (bodyMode) {
+                case LENGTH -> {
+                    remaining -= copy(in, out, remaining);
+                    finished = remaining == 0;
+                }
+                case UNTIL_CLOSE -> copy(in, out, Long.MAX_VALUE);
+                case CHUNKED -> {
+                    while (out.hasRemaining() && !finished) {
+                        switch (chunkState) {
+                            case CHUNK_SIZE -> {
+                                String line = line(in);
+                                if (line == null)
+                                    return;
+                                int semi = line.indexOf(';');
+                                remaining = Long.parseLong((semi >= 0 ? line.substring(0, semi) : line).trim(), 16);
+                                chunkState = remaining == 0 ? CHUNK_TRAILERS : CHUNK_DATA;
+                            }
+                            case CHUNK_DATA -> {
+                                int n = copy(in, out, remaining);
+                                remaining -= n;
+                                if (remaining > 0 && n == 0)
+                                    return;
+                                if (remaining == 0)
+                                    chunkState = CHUNK_CRLF;
+                            }
+                            case CHUNK_CRLF -> {
+                                if (in.remaining() < 2)
+                                    return;
+                                if (in.get() != '\r' || in.get() != '\n')
+                                    throw new IOException("bad upstream chunk");
+                                chunkState = CHUNK_SIZE;
+                            }
+                            case CHUNK_TRAILERS -> {
+                                String line = line(in);
+                                if (line == null)
+                                    return;
+                                if (line.isEmpty()) {
+                                    finished = true;
+                                    return;
+                                }
+                                int idx = line.indexOf(':');
+                                if (idx > 0)
+                                    trailers.put(line.substring(0, idx).trim(), line.substring(idx + 1).trim());
+                            }
+                            default -> {}
+                        }
+                    }
+                }
+                default -> finished = true;
+            }
+        }
+
+        private static int copy(ByteBuffer in, ByteBuffer out, long max) {
+            int n = (int) Math.min(Math.min(in.remaining(), out.remaining()), max);
+            out.put(in.slice(in.position(), n));
+            in.position(in.position() + n);
+            return n;
+        }
+
+        private static String line(ByteBuffer in) throws IOException {
+            for (int i = in.position(); i + 1 < in.limit(); i++) {
+                if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                    String s = new String(in.array(), in.position(), i - in.position(), StandardCharsets.ISO_8859_1);
+                    in.position(i + 2);
+                    return s;
+                }
+            }
+            if (in.limit() == in.capacity())
+                throw new IOException("upstream chunk line too long");
+            return null;
+        }
+
+        @Override
+        public Map<String, String> trailers() {
+            return trailers;
+        }
+
+        @Override
+        public void onReady(Runnable resume) {
+            this.resume = resume;
+        }
+
+        // client went away, or the body is done
+        @Override
+        public void close() {
+            if (!finished && conn.exchange == this)
+                discard(conn);
+        }
+
+        void wake() {
+            stalled = false;
+            if (resume != null)
+                resume.run();
+            if (drained != null) {
+                Runnable r = drained;
+                drained = null;
+                r.run();
+            }
+        }
+    }
+
+    // content-type -> Content-Type, so the encoder's own header checks see upstream headers
+    private static String canonical(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        boolean upper = true;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            sb.append(upper ? Character.toUpperCase(ch) : ch);
+            upper = ch == '-';
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+import java.net.InetAddress;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Per client address token buckets: one table for the whole server, one per route that sets its own limit.
+// Clients are identified by a long computed once at accept, so checks never allocate.
+public class RateLimiter {
+    private final utils.TokenBuckets global;
+    private final Map<ConfigLoader.Route, utils.TokenBuckets> perRoute = new IdentityHashMap<>();
+    private volatile long rejected;//reactor writes, stats() may be read elsewhere
+
+    public RateLimiter(ConfigLoader.Config cfg) {
+        global = cfg.rateLimitPerSecond > 0
+                ? new utils.TokenBuckets(cfg.rateLimitPerSecond, cfg.rateLimitBurst, cfg.rateLimitTableSize) : null;
+        for (ConfigLoader.Route r : cfg.routes)
+            if (r.rateLimitPerSecond > 0)
+                perRoute.put(r, new utils.TokenBuckets(r.rateLimitPerSecond, r.rateLimitBurst, cfg.rateLimitTableSize));
+    }
+
+    // evictions summed over the server table and the per-route ones
+    public record Stats(long rejected, long evictions) {}
+
+    public Stats stats() {
+        long evictions = global != null ? global.evictions() : 0;
+        for (utils.TokenBuckets b : perRoute.values())
+            evictions += b.evictions();
+        return new Stats(rejected, evictions);
+    }
+
+    public boolean enabled() {
+        return global != null || !perRoute.isEmpty();
+    }
+
+    // route may be null (no match); both the server and the route bucket must have a token
+    public boolean allow(long clientKey, ConfigLoader.Route route, long nowMs) {
+        if (global != null && !global.tryAcquire(clientKey, nowMs)) {
+            rejected++;
+            return false;
+        }
+        utils.TokenBuckets b = route == null ? null : perRoute.get(route);
+        if (b != null && !b.tryAcquire(clientKey, nowMs)) {
+            rejected++;
+            return false;
+        }
+        return true;
+    }
+
+    public void sweep(long nowMs) {
+        if (global != null)
+            global.sweep(nowMs);
+        for (utils.TokenBuckets b : perRoute.values())
+            b.sweep(nowMs);
+    }
+
+    // IPv4 keeps its 32 bits under a tag bit; IPv6 is limited per /64, the block a single host usually gets.
+    // Never 0, which marks an empty slot.
+    static long clientKey(InetAddress addr) {
+        byte[] a = addr.getAddress();
+        if (a.length == 4)
+            return (1L << 32) | ((a[0] & 0xffL) << 24) | ((a[1] & 0xffL) << 16) | ((a[2] & 0xffL) << 8) | (a[3] & 0xffL);
+        long prefix = 0;
+        for (int i = 0; i < 8; i++)
+            prefix = (prefix << 8) | (a[i] & 0xffL);
+        return prefix | (1L << 63);
+    }
+}
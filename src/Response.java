@@ -1,13 +1,58 @@
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class Response {
     public int status;
     public String reason;
     public Map<String, String> headers= new LinkedHashMap<>();
+    // fields that go out as one line per value because they cannot be comma-joined (Set-Cookie); null when none
+    public List<Map.Entry<String, String>> repeatedHeaders;
     public byte[] body = new byte[0];
     public boolean closeAfterWrite=false;
+    // streamed body, used instead of body; sent chunked unless a Content-Length header is set
+    public BodyProducer producer;
+    // set by handlers that answer later (proxied routes); the connection waits for the real response
+    public Pending pending;
+
+    static final utils.BufferPool BODY_POOL=new utils.BufferPool(16*1024, 256);
+
+    // Pulled by the connection whenever the socket can take more, so a slow client throttles the producer.
+    public interface BodyProducer{
+        // Appends the next bytes of the body to out; false once the body is complete.
+        boolean produce(ByteBuffer out) throws IOException;
+        // sent after the last chunk when chunked, or as a trailing HEADERS frame on HTTP/2
+        default Map<String, String> trailers(){return Map.of();}
+        // releases resources, also called when the client goes away mid-body
+        default void close(){}
+        // A producer that wrote nothing but returned true is out of data for now; it runs resume
+        // (on the reactor thread) once more is available.
+        default void onReady(Runnable resume){}
+    }
+
+    // A response completed later on the reactor thread, at most once.
+    public static final class Pending{
+        private Consumer<Response> listener;
+        private Response result;
+
+        public void complete(Response r){
+            if(result!=null)return;
+            result=r;
+            if(listener!=null)listener.accept(r);
+        }
+        public void onComplete(Consumer<Response> l){
+            listener=l;
+            if(result!=null)l.accept(result);
+        }
+    }
+
+    public static Response pending(Pending p){
+        Response r=new Response();
+        r.pending=p;
+        return r;
+    }
     
     public static Response text(int status, String reason, String contentType, String text){
         Response r= new Response();
@@ -17,23 +62,28 @@ public class Response {
         r.headers.put("Content-Type",contentType+"; charset=utf-8");
         return r;
     }
-   public List<ByteBuffer> toByteBuffers(){
-    if(!headers.containsKey("Content-Length")){
-        headers.put("Content-Length",String.valueOf(body.length));
-    }
-    if(!headers.containsKey("Connection")){
-        headers.put("Connection",closeAfterWrite?"close":"keep-alive");
+    public static Response stream(int status, String reason, String contentType, BodyProducer producer){
+        Response r= new Response();
+        r.status=status;
+        r.reason=reason;
+        r.producer=producer;
+        r.headers.put("Content-Type",contentType);
+        return r;
     }
-    if(!headers.containsKey("Server")){
-        headers.put("Server","LocalServer/1.0");
+
+    public void addRepeatedHeader(String name, String value){
+        if(repeatedHeaders==null) repeatedHeaders=new ArrayList<>(2);
+        repeatedHeaders.add(Map.entry(name,value));
     }
-    StringBuilder sb=new StringBuilder();
-    sb.append("HTTP/1.1").append(status).append(" ").append(reason).append("\r\n");
-    for(var e:headers.entrySet()){
-        sb.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+
+    boolean isChunked(){
+        return producer!=null && !headers.containsKey("Content-Length");
     }
-    sb.append("\r\n");
-    byte[] head=sb.toString().getBytes(StandardCharsets.ISO_8859_1);
-    return List.of(ByteBuffer.wrap(head),ByteBuffer.wrap(body));
+
+    // With a producer only the head is returned, the body is pulled by the connection.
+   public List<ByteBuffer> toByteBuffers(){
+    ByteBuffer head=ResponseEncoder.encodeHead(this);
+    if(body.length==0 || producer!=null) return List.of(head);
+    return List.of(head,ByteBuffer.wrap(body));
    }
 }
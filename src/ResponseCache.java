@@ -0,0 +1,590 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+// Shared in-memory cache of GET/HEAD responses for routes with cache set, keyed by method, normalized path,
+// query and the request headers the response Varies on. Freshness comes from the handler's s-maxage or
+// max-age; afterwards the entry is served stale while one background request refreshes it. no-cache responses
+// that carry a validator are stored but confirmed with a conditional request before every use, and refreshes
+// are conditional too, so a 304 keeps the stored body. Concurrent misses on a key wait for a single origin
+// request (its body is buffered in full, trailers included) instead of each going to the origin. Entries are
+// evicted least recently used first to stay within the byte budget. Reactor thread only.
+public class ResponseCache {
+    private static final Set<Integer> CACHEABLE_STATUS = Set.of(200, 203, 204, 300, 301, 308, 404, 410);
+    private static final int VARY_NAMES_MAX = 4096;
+    private static final int ENTRY_OVERHEAD = 128;//rough per-entry bookkeeping, counted against the budget
+    private static final int RUSH = 2;//waiters released by each answer once a key turned out uncacheable
+
+    private final ConfigLoader.Config cfg;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    // last Vary header names seen for a method+path+query, needed to build the full key before a lookup
+    private final LinkedHashMap<String, String[]> varyNames = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > VARY_NAMES_MAX;
+        }
+    };
+    private final Map<String, Fill> inflight = new HashMap<>();
+    private long bytes;
+    // bumped on the reactor thread; volatile so a monitor thread can take stats() while it runs
+    private volatile long hits, staleHits, revalidations, misses, coalesced;
+
+    public ResponseCache(ConfigLoader.Config cfg) {
+        this.cfg = cfg;
+    }
+
+    public record Stats(long hits, long staleHits, long revalidations, long misses, long coalesced) {}
+
+    public Stats stats() {
+        return new Stats(hits, staleHits, revalidations, misses, coalesced);
+    }
+
+    public static boolean applies(ConfigLoader.Route route, HttpModels.Request req) {
+        return route != null && route.cache && ("GET".equals(req.method) || "HEAD".equals(req.method))
+                && req.bodySink == null && req.body.length == 0 && !req.headers.containsKey("authorization");
+    }
+
+    // Answers from the cache or asks origin, which is only called for a miss or a refresh.
+    public Response handle(HttpModels.Request req, Function<HttpModels.Request, Response> origin) {
+        long now = System.currentTimeMillis();
+        String base = req.method + ' ' + req.path + '?' + req.query;
+        String key = key(base, varyNames.get(base), req);
+        Entry e = entries.get(key);
+        Entry validate = null;
+        if (e != null) {
+            if (now < e.freshUntil) {
+                hits++;
+                return e.toResponse(now, "HIT");
+            }
+            if (now < e.staleUntil && !e.noCache) {
+                staleHits++;
+                if (!inflight.containsKey(key))
+                    fetch(key, req, origin, null, e);
+                return e.toResponse(now, "STALE");
+            }
+            // no-cache: the origin has to confirm the entry before it is used
+            if (now < e.staleUntil)
+                validate = e;
+            else
+                remove(key);
+        }
+        Fill f = inflight.get(key);
+        Response.Pending p = new Response.Pending();
+        if (f != null) {
+            coalesced++;
+            f.waiters.add(new Waiter(req, p));
+            return Response.pending(p);
+        }
+        if (validate != null)
+            revalidations++;
+        else
+            misses++;
+        f = fetch(key, req, origin, new Waiter(req, p), validate);
+        // answered on the spot without a body to buffer: no need to go through the pending
+        if (f.done && f.direct != null)
+            return f.direct;
+        return Response.pending(p);
+    }
+
+    // one origin request for key, conditional when there is a stored entry; leader is null for a background refresh
+    private Fill fetch(String key, HttpModels.Request req, Function<HttpModels.Request, Response> origin, Waiter leader,
+            Entry stored) {
+        Fill f = new Fill(key, origin);
+        f.stored = stored;
+        if (leader != null)
+            f.waiters.add(leader);
+        inflight.put(key, f);
+        Response r = origin.apply(stored == null ? req : conditional(req, stored));
+        if (r.pending != null)
+            r.pending.onComplete(res -> onHead(f, req, res));
+        else
+            onHead(f, req, r);
+        return f;
+    }
+
+    private void onHead(Fill f, HttpModels.Request req, Response r) {
+        Map<String, String> trailers = Map.of();
+        if (r.status == 304 && f.stored != null) {
+            // still valid: the stored body goes out again under the refreshed headers
+            f.revalidated = true;
+            r = f.stored.updated(r);
+            trailers = f.stored.trailers;
+        }
+        String[] vary = varyOf(r);
+        boolean noCache = noCache(r);
+        long ttl = vary == null || !storable(r) ? -1 : freshnessMs(r);
+        // no-cache entries are only worth keeping when the origin can confirm them with a 304
+        boolean keep = noCache ? vary != null && storable(r) && (header(r, "ETag") != null || header(r, "Last-Modified") != null)
+                : ttl > 0;
+        if (!keep || contentLength(r) > cfg.responseCacheMaxEntryBytes) {
+            pass(f, r);
+            return;
+        }
+        f.head = r;
+        f.vary = vary;
+        f.noCache = noCache;
+        f.ttlMs = noCache ? 0 : ttl;
+        f.base = req.method + ' ' + req.path + '?' + req.query;
+        f.storeKey = key(f.base, vary, req);
+        if (r.producer == null) {
+            store(f, r.body, trailers);
+            return;
+        }
+        f.body = new ByteArrayOutputStream();
+        f.buf = ByteBuffer.allocate(16 * 1024);
+        pump(f);
+    }
+
+    // Pulls the origin body into memory; a producer that runs dry calls back once it has more.
+    private void pump(Fill f) {
+        if (f.done)
+            return;
+        Response.BodyProducer producer = f.head.producer;
+        try {
+            while (true) {
+                f.buf.clear();
+                boolean more = producer.produce(f.buf);
+                f.body.write(f.buf.array(), 0, f.buf.position());
+                if (f.body.size() > cfg.responseCacheMaxEntryBytes) {
+                    // too big after all: the first waiter gets what was read followed by the rest of the stream
+                    if (more) {
+                        f.head.producer = new Prefixed(f.body.toByteArray(), producer);
+                    } else {
+                        f.head.producer = new Buffered(f.body.toByteArray(), new LinkedHashMap<>(producer.trailers()));
+                        producer.close();
+                    }
+                    pass(f, f.head);
+                    return;
+                }
+                if (!more)
+                    break;
+                if (f.buf.position() == 0) {
+                    producer.onReady(() -> pump(f));
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            producer.close();
+            pass(f, ErrorPages.response(cfg, 502));
+            return;
+        }
+        Map<String, String> trailers = new LinkedHashMap<>(producer.trailers());
+        producer.close();
+        store(f, f.body.toByteArray(), trailers);
+    }
+
+    private void store(Fill f, byte[] body, Map<String, String> trailers) {
+        long now = System.currentTimeMillis();
+        Response r = f.head;
+        Entry e = new Entry();
+        e.status = r.status;
+        e.reason = r.reason;
+        e.headers = new LinkedHashMap<>(r.headers);
+        e.headers.remove("Age");
+        // a buffered stream is sent from the array, whose length the encoder writes; HEAD keeps the origin's
+        if (r.producer != null)
+            e.headers.remove("Content-Length");
+        e.body = body;
+        e.trailers = trailers;
+        e.noCache = f.noCache;
+        e.storedMs = now;
+        e.initialAgeSeconds = ageSeconds(r);
+        e.freshUntil = now + f.ttlMs;
+        // a no-cache entry is kept (and revalidated on use) for its max-age plus the stale window
+        e.staleUntil = e.freshUntil + (f.noCache ? Math.max(0, freshnessMs(r)) + staleMs(r) : mustRevalidate(r) ? 0 : staleMs(r));
+        e.size = ENTRY_OVERHEAD + f.storeKey.length() * 2L + body.length;
+        for (var h : e.headers.entrySet())
+            e.size += (h.getKey().length() + h.getValue().length()) * 2L;
+        for (var h : trailers.entrySet())
+            e.size += (h.getKey().length() + h.getValue().length()) * 2L;
+        finish(f);
+        if (f.vary.length > 0)
+            varyNames.put(f.base, f.vary);
+        else
+            varyNames.remove(f.base);
+        if (!f.key.equals(f.storeKey))
+            remove(f.key);
+        remove(f.storeKey);
+        if (e.size <= cfg.responseCacheBytes) {
+            entries.put(f.storeKey, e);
+            bytes += e.size;
+            var it = entries.values().iterator();
+            while (bytes > cfg.responseCacheBytes && it.hasNext()) {
+                bytes -= it.next().size;
+                it.remove();
+            }
+        }
+        for (Waiter w : f.waiters) {
+            if (key(f.base, f.vary, w.req).equals(f.storeKey)) {
+                Response res = e.toResponse(now, f.revalidated ? "REVALIDATED" : "MISS");
+                if (f.waiters.size() == 1 && f.done)
+                    f.direct = res;
+                w.pending.complete(res);
+            } else {
+                redispatch(f, w);
+            }
+        }
+    }
+
+    // Not cacheable: the first waiter takes the origin's response, the others ask the origin themselves, a few
+    // at a time (see rush) rather than all at once. Bodiless server errors are shared so a failing upstream is
+    // not hit again by every waiter.
+    private void pass(Fill f, Response r) {
+        finish(f);
+        // a failed refresh keeps serving the stale entry until it runs out
+        if (r.status < 500)
+            remove(f.key);
+        if (f.waiters.isEmpty()) {
+            if (r.producer != null)
+                r.producer.close();
+            return;
+        }
+        if (f.waiters.size() == 1)
+            f.direct = r;
+        f.waiters.get(0).pending.complete(r);
+        List<Waiter> rest = f.waiters.subList(1, f.waiters.size());
+        if (r.producer == null && r.status >= 500) {
+            for (Waiter w : rest)
+                w.pending.complete(copy(r));
+            return;
+        }
+        rush(f, new ArrayDeque<>(rest));
+    }
+
+    // Sends the next queued waiter to the origin; each answer releases RUSH more, so the load ramps up
+    // 1, 2, 4... instead of every waiter hitting the origin in the same instant.
+    private static void rush(Fill f, ArrayDeque<Waiter> queue) {
+        Waiter w;
+        while ((w = queue.pollFirst()) != null) {
+            Response r = f.origin.apply(w.req);
+            if (r.pending == null) {
+                w.pending.complete(r);
+                continue;
+            }
+            Waiter answered = w;
+            r.pending.onComplete(res -> {
+                answered.pending.complete(res);
+                for (int i = 0; i < RUSH; i++)
+                    rush(f, queue);
+            });
+            return;
+        }
+    }
+
+    private void finish(Fill f) {
+        f.done = true;
+        inflight.remove(f.key, f);
+    }
+
+    private static void redispatch(Fill f, Waiter w) {
+        Response r = f.origin.apply(w.req);
+        if (r.pending != null)
+            r.pending.onComplete(w.pending::complete);
+        else
+            w.pending.complete(r);
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null)
+            bytes -= e.size;
+    }
+
+    private static String key(String base, String[] vary, HttpModels.Request req) {
+        if (vary == null || vary.length == 0)
+            return base;
+        StringBuilder sb = new StringBuilder(base);
+        for (String name : vary)
+            sb.append('\n').append(name).append(':').append(req.headers.getOrDefault(name, ""));
+        return sb.toString();
+    }
+
+    // ---- response header inspection
+
+    private static String header(Response r, String name) {
+        String v = header(r.headers, name);
+        if (v == null && r.repeatedHeaders != null)
+            for (var h : r.repeatedHeaders)
+                if (h.getKey().equalsIgnoreCase(name))
+                    return h.getValue();
+        return v;
+    }
+
+    private static String header(Map<String, String> headers, String name) {
+        for (var h : headers.entrySet())
+            if (h.getKey().equalsIgnoreCase(name))
+                return h.getValue();
+        return null;
+    }
+
+    // lower-cased, sorted names; null for Vary: *
+    private static String[] varyOf(Response r) {
+        String v = header(r, "Vary");
+        if (v == null || v.isBlank())
+            return new String[0];
+        List<String> names = new ArrayList<>();
+        for (String n : v.split(",")) {
+            n = n.trim().toLowerCase(Locale.ROOT);
+            if (n.equals("*"))
+                return null;
+            if (!n.isEmpty() && !names.contains(n))
+                names.add(n);
+        }
+        names.sort(null);
+        return names.toArray(new String[0]);
+    }
+
+    private static boolean storable(Response r) {
+        return CACHEABLE_STATUS.contains(r.status) && header(r, "Set-Cookie") == null && !noStore(r);
+    }
+
+    // s-maxage over max-age, minus any Age the origin reported; <=0 when stale from the start
+    private static long freshnessMs(Response r) {
+        long maxAge = directive(r, "s-maxage");
+        if (maxAge < 0)
+            maxAge = directive(r, "max-age");
+        return (maxAge - ageSeconds(r)) * 1000;
+    }
+
+    private static boolean noStore(Response r) {
+        String cc = header(r, "Cache-Control");
+        if (cc == null)
+            return false;
+        cc = cc.toLowerCase(Locale.ROOT);
+        return cc.contains("no-store") || cc.contains("private");
+    }
+
+    private static boolean noCache(Response r) {
+        String cc = header(r, "Cache-Control");
+        return cc != null && cc.toLowerCase(Locale.ROOT).contains("no-cache");
+    }
+
+    // the origin request for a refresh, asking for a 304 when the stored entry is still good
+    private static HttpModels.Request conditional(HttpModels.Request req, Entry e) {
+        String etag = header(e.headers, "ETag");
+        String modified = header(e.headers, "Last-Modified");
+        if (etag == null && modified == null)
+            return req;
+        HttpModels.Request c = new HttpModels.Request();
+        c.method = req.method;
+        c.target = req.target;
+        c.path = req.path;
+        c.query = req.query;
+        c.version = req.version;
+        c.remoteAddr = req.remoteAddr;
+        c.headers.putAll(req.headers);
+        c.headers.remove("if-none-match");
+        c.headers.remove("if-modified-since");
+        if (etag != null)
+            c.headers.put("if-none-match", etag);
+        if (modified != null)
+            c.headers.put("if-modified-since", modified);
+        return c;
+    }
+
+    private static boolean mustRevalidate(Response r) {
+        String cc = header(r, "Cache-Control");
+        return cc != null && cc.toLowerCase(Locale.ROOT).contains("must-revalidate");
+    }
+
+    private long staleMs(Response r) {
+        long swr = directive(r, "stale-while-revalidate");
+        return (swr >= 0 ? swr : cfg.responseCacheStaleSeconds) * 1000L;
+    }
+
+    // value of a numeric Cache-Control directive, -1 when absent or malformed
+    private static long directive(Response r, String name) {
+        String cc = header(r, "Cache-Control");
+        if (cc == null)
+            return -1;
+        for (String d : cc.split(",")) {
+            int eq = d.indexOf('=');
+            if (eq > 0 && d.substring(0, eq).trim().equalsIgnoreCase(name)) {
+                try {
+                    return Long.parseLong(d.substring(eq + 1).trim().replace("\"", ""));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static long ageSeconds(Response r) {
+        String age = header(r, "Age");
+        try {
+            return age == null ? 0 : Math.max(0, Long.parseLong(age.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static long contentLength(Response r) {
+        String cl = header(r, "Content-Length");
+        try {
+            return cl == null ? r.body.length : Long.parseLong(cl.trim());
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static Response copy(Response r) {
+        Response c = new Response();
+        c.status = r.status;
+        c.reason = r.reason;
+        c.headers.putAll(r.headers);
+        c.repeatedHeaders = r.repeatedHeaders;
+        c.body = r.body;
+        c.closeAfterWrite = r.closeAfterWrite;
+        return c;
+    }
+
+    private static final class Entry {
+        int status;
+        String reason;
+        Map<String, String> headers;
+        byte[] body;
+        Map<String, String> trailers;
+        boolean noCache;//revalidated before every use
+        long storedMs;
+        long initialAgeSeconds;
+        long freshUntil;
+        long staleUntil;
+        long size;
+
+        // entries are shared: every hit gets its own Response around the same body array
+        Response toResponse(long now, String cacheStatus) {
+            Response r = new Response();
+            r.status = status;
+            r.reason = reason;
+            r.headers.putAll(headers);
+            r.headers.put("Age", String.valueOf(initialAgeSeconds + (now - storedMs) / 1000));
+            r.headers.put("X-Cache", cacheStatus);
+            r.body = body;
+            if (!trailers.isEmpty())
+                r.producer = new Buffered(body, trailers);
+            return r;
+        }
+
+        // the stored response with the headers of a 304 for it applied (RFC 9111 4.3.4)
+        Response updated(Response notModified) {
+            Response r = new Response();
+            r.status = status;
+            r.reason = reason;
+            r.headers.putAll(headers);
+            for (var h : notModified.headers.entrySet()) {
+                if (h.getKey().equalsIgnoreCase("Content-Length"))
+                    continue;
+                r.headers.keySet().removeIf(k -> k.equalsIgnoreCase(h.getKey()));
+                r.headers.put(h.getKey(), h.getValue());
+            }
+            r.repeatedHeaders = notModified.repeatedHeaders;
+            r.body = body;
+            return r;
+        }
+    }
+
+    private static final class Waiter {
+        final HttpModels.Request req;
+        final Response.Pending pending;
+
+        Waiter(HttpModels.Request req, Response.Pending pending) {
+            this.req = req;
+            this.pending = pending;
+        }
+    }
+
+    // one origin request in flight for a key, with the clients waiting on it
+    private static final class Fill {
+        final String key;
+        final Function<HttpModels.Request, Response> origin;
+        final List<Waiter> waiters = new ArrayList<>();
+        boolean done;
+        Response direct;//the leader's response when it was ready before handle returned
+        Entry stored;//being refreshed or revalidated, null for a miss
+        boolean revalidated;//the origin answered 304
+        Response head;
+        String[] vary;
+        boolean noCache;
+        long ttlMs;
+        String base;
+        String storeKey;
+        ByteArrayOutputStream body;
+        ByteBuffer buf;
+
+        Fill(String key, Function<HttpModels.Request, Response> origin) {
+            this.key = key;
+            this.origin = origin;
+        }
+    }
+
+    // a stored body sent as a stream, so the trailers it came with follow it
+    private static final class Buffered implements Response.BodyProducer {
+        private final ByteBuffer body;
+        private final Map<String, String> trailers;
+
+        Buffered(byte[] body, Map<String, String> trailers) {
+            this.body = ByteBuffer.wrap(body);
+            this.trailers = trailers;
+        }
+
+        @Override
+        public boolean produce(ByteBuffer out) {
+            int n = Math.min(body.remaining(), out.remaining());
+            out.put(body.slice(body.position(), n));
+            body.position(body.position() + n);
+            return body.hasRemaining();
+        }
+
+        @Override
+        public Map<String, String> trailers() {
+            return trailers;
+        }
+    }
+
+    // replays the bytes already pulled from a producer, then hands over to it
+    private static final class Prefixed implements Response.BodyProducer {
+        private final ByteBuffer prefix;
+        private final Response.BodyProducer rest;
+
+        Prefixed(byte[] prefix, Response.BodyProducer rest) {
+            this.prefix = ByteBuffer.wrap(prefix);
+            this.rest = rest;
+        }
+
+        @Override
+        public boolean produce(ByteBuffer out) throws IOException {
+            if (prefix.hasRemaining()) {
+                int n = Math.min(prefix.remaining(), out.remaining());
+                out.put(prefix.slice(prefix.position(), n));
+                prefix.position(prefix.position() + n);
+                return true;
+            }
+            return rest.produce(out);
+        }
+
+        @Override
+        public Map<String, String> trailers() {
+            return rest.trailers();
+        }
+
+        @Override
+        public void close() {
+            rest.close();
+        }
+
+        @Override
+        public void onReady(Runnable resume) {
+            rest.onReady(resume);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+
+// Writes response heads straight into pooled direct buffers, no per-response String/byte[] garbage.
+public class ResponseEncoder {
+    static final utils.BufferPool HEAD_POOL = new utils.BufferPool(8 * 1024, 256);
+
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    private static final byte[] HTTP_1_1 = ascii("HTTP/1.1 ");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] COLON_SP = ascii(": ");
+
+    static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    static final byte[] SERVER = ascii("Server: LocalServer/1.0\r\n");
+    static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] LAST_CHUNK = ascii("0\r\n");
+    private static final byte[] HEX = ascii("0123456789abcdef");
+
+    // chunk layout inside a BODY_POOL buffer: size line, data, CRLF
+    static final int CHUNK_HEADER_RESERVE = 6;//"3ffa\r\n"
+    static final int CHUNK_TRAILER_RESERVE = 2;
+
+    // RFC 7231 IMF-fixdate, always two digit day
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static volatile byte[] dateLine = new byte[0];
+    private static volatile long dateSecond = -1;
+
+    static {
+        int[] common = {100, 101, 200, 201, 202, 204, 206, 301, 302, 303, 304, 307, 308,
+                400, 401, 403, 404, 405, 408, 411, 413, 414, 415, 416, 429, 431,
+                500, 501, 502, 503, 504, 505};
+        for (int code : common)
+            STATUS_LINES[code] = ascii("HTTP/1.1 " + code + " " + reasonPhrase(code) + "\r\n");
+    }
+
+    public static String reasonPhrase(int code) {
+        return switch (code) {
+            case 100 -> "Continue";
+            case 101 -> "Switching Protocols";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 408 -> "Request Timeout";
+            case 411 -> "Length Required";
+            case 413 -> "Payload Too Large";
+            case 414 -> "URI Too Long";
+            case 415 -> "Unsupported Media Type";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            case 505 -> "HTTP Version Not Supported";
+            default -> "Unknown";
+        };
+    }
+
+    // Pooled head buffer, flipped for writing. Heads too large for the pool fall back to a heap buffer.
+    public static ByteBuffer encodeHead(Response r) {
+        ByteBuffer out = HEAD_POOL.acquire();
+        try {
+            writeHead(r, out);
+        } catch (BufferOverflowException e) {
+            HEAD_POOL.release(out);
+            out = ByteBuffer.allocate(estimate(r));
+            writeHead(r, out);
+        }
+        return out.flip();
+    }
+
+    private static void writeHead(Response r, ByteBuffer out) {
+        byte[] line = (r.status > 0 && r.status < STATUS_LINES.length) ? STATUS_LINES[r.status] : null;
+        if (line != null && (r.reason == null || r.reason.equals(reasonPhrase(r.status)))) {
+            out.put(line);
+        } else {
+            out.put(HTTP_1_1);
+            putInt(out, r.status);
+            out.put((byte) ' ');
+            putAscii(out, r.reason != null ? r.reason : reasonPhrase(r.status));
+            out.put(CRLF);
+        }
+        Map<String, String> headers = r.headers;
+        for (var e : headers.entrySet()) {
+            putAscii(out, e.getKey());
+            out.put(COLON_SP);
+            putAscii(out, e.getValue());
+            out.put(CRLF);
+        }
+        if (r.repeatedHeaders != null) {
+            for (var e : r.repeatedHeaders) {
+                putAscii(out, e.getKey());
+                out.put(COLON_SP);
+                putAscii(out, e.getValue());
+                out.put(CRLF);
+            }
+        }
+        if (r.isChunked()) {
+            out.put(TRANSFER_ENCODING_CHUNKED);
+        } else if (!headers.containsKey("Content-Length")) {
+            out.put(CONTENT_LENGTH);
+            putInt(out, r.body.length);
+            out.put(CRLF);
+        }
+        if (!headers.containsKey("Connection"))
+            out.put(r.closeAfterWrite ? CONNECTION_CLOSE : CONNECTION_KEEP_ALIVE);
+        if (!headers.containsKey("Server"))
+            out.put(SERVER);
+        if (!headers.containsKey("Date"))
+            out.put(dateLine());
+        out.put(CRLF);
+    }
+
+    // Frames the data a producer wrote at [CHUNK_HEADER_RESERVE, position) as one chunk, in place.
+    static ByteBuffer frameChunk(ByteBuffer buf) {
+        int end = buf.position();
+        int n = end - CHUNK_HEADER_RESERVE;
+        int digits = 1;
+        while ((n >>> (4 * digits)) != 0)
+            digits++;
+        int start = CHUNK_HEADER_RESERVE - digits - 2;
+        for (int i = 0; i < digits; i++)
+            buf.put(start + i, HEX[(n >>> (4 * (digits - 1 - i))) & 0xf]);
+        buf.put(start + digits, (byte) '\r').put(start + digits + 1, (byte) '\n');
+        buf.limit(buf.capacity()).position(end);
+        buf.put(CRLF);
+        return buf.flip().position(start);
+    }
+
+    // "0\r\n", trailer fields, "\r\n"
+    static ByteBuffer lastChunk(Map<String, String> trailers) {
+        ByteBuffer out = HEAD_POOL.acquire();
+        try {
+            writeLastChunk(out, trailers);
+        } catch (BufferOverflowException e) {
+            HEAD_POOL.release(out);
+            int n = 16;
+            for (var t : trailers.entrySet())
+                n += t.getKey().length() + t.getValue().length() + 4;
+            out = ByteBuffer.allocate(n);
+            writeLastChunk(out, trailers);
+        }
+        return out.flip();
+    }
+
+    private static void writeLastChunk(ByteBuffer out, Map<String, String> trailers) {
+        out.put(LAST_CHUNK);
+        for (var t : trailers.entrySet()) {
+            putAscii(out, t.getKey());
+            out.put(COLON_SP);
+            putAscii(out, t.getValue());
+            out.put(CRLF);
+        }
+        out.put(CRLF);
+    }
+
+    // "Date: ...\r\n", regenerated at most once per second
+    static byte[] dateLine() {
+        long now = System.currentTimeMillis() / 1000;
+        if (now != dateSecond) {
+            dateLine = ascii("Date: " + IMF_FIXDATE.format(Instant.ofEpochSecond(now)) + "\r\n");
+            dateSecond = now;
+        }
+        return dateLine;
+    }
+
+    private static int estimate(Response r) {
+        int n = 256 + (r.reason != null ? r.reason.length() : 0);
+        for (var e : r.headers.entrySet())
+            n += e.getKey().length() + e.getValue().length() + 4;
+        if (r.repeatedHeaders != null)
+            for (var e : r.repeatedHeaders)
+                n += e.getKey().length() + e.getValue().length() + 4;
+        return n;
+    }
+
+    // header text is ISO-8859-1, characters outside it become '?' like String.getBytes does
+    static void putAscii(ByteBuffer out, String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            out.put(c > 0xff ? (byte) '?' : (byte) c);
+        }
+    }
+
+    static void putInt(ByteBuffer out, long v) {
+        if (v < 0) {
+            out.put((byte) '-');
+            v = -v;
+        }
+        long div = 1;
+        while (div <= v / 10)
+            div *= 10;
+        for (; div > 0; div /= 10)
+            out.put((byte) ('0' + (v / div) % 10));
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
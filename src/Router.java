@@ -1,24 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 public class Router {
+    private static final long STREAM_THRESHOLD = 64 * 1024;//larger files are streamed, not read into memory
+    private static final int RESOLVED_CACHE_SIZE = 1024;//per static route
+
     private final ConfigLoader.Config cfg;
+    private final ProxyHandler proxy;
+    private final Map<ConfigLoader.Route, ResolvedPaths> resolved = new IdentityHashMap<>();
+    private final ResponseCache cache;
 
     public Router(ConfigLoader.Config cfg) {
         this.cfg = cfg;
+        this.proxy = new ProxyHandler(cfg);
+        this.cache = cfg.responseCacheBytes > 0 ? new ResponseCache(cfg) : null;
     }
 
-    public Response handle(HttpModels.Request req) {
+    public ProxyHandler proxy() {
+        return proxy;
+    }
+
+    // longest matching prefix wins
+    ConfigLoader.Route match(String path) {
         ConfigLoader.Route route = null;
         int best = -1;
         for (ConfigLoader.Route r : cfg.routes) {
-            if (req.path.startsWith(r.pathPrefix) && r.pathPrefix.length() > best) {
+            if (path.startsWith(r.pathPrefix) && r.pathPrefix.length() > best) {
                 route = r;
                 best = r.pathPrefix.length();
             }
 
         }
+        return route;
+    }
+
+    // Called by the parser once headers are in: bodies of upload and proxied routes are streamed, everything else is buffered.
+    public HttpModels.BodySink openBodySink(HttpModels.Request req) {
+        ConfigLoader.Route route = match(req.path);
+        if (route == null)
+            return null;
+        if (!route.methods.isEmpty() && !route.methods.contains(req.method))
+            return null;
+        if (!route.proxyPass.isEmpty())
+            return proxy.open(route, req);
+        if (!route.upload || !"POST".equals(req.method))
+            return null;
+        return UploadHandler.open(route, req);
+    }
+
+    public Response handle(HttpModels.Request req) {
+        ConfigLoader.Route route = match(req.path);
+        ServerEvents.RouteHandle e = new ServerEvents.RouteHandle();
+        e.begin();
+        Response r = cache != null && ResponseCache.applies(route, req)
+                ? cache.handle(req, rq -> handle(route, rq)) : handle(route, req);
+        if (r.pending == null) {
+            routeHandled(e, route, req, r);
+            return r;
+        }
+        if (!e.isEnabled())
+            return r;
+        // committed once the response is known, relayed through a pending of our own since it takes one listener
+        Response.Pending done = new Response.Pending();
+        r.pending.onComplete(res -> {
+            routeHandled(e, route, req, res);
+            done.complete(res);
+        });
+        return Response.pending(done);
+    }
+
+    private static void routeHandled(ServerEvents.RouteHandle e, ConfigLoader.Route route, HttpModels.Request req, Response r) {
+        if (!e.shouldCommit())
+            return;
+        e.route = route == null ? null : route.pathPrefix;
+        e.method = req.method;
+        e.path = req.path;
+        e.status = r.status;
+        e.commit();
+    }
+
+    private Response handle(ConfigLoader.Route route, HttpModels.Request req) {
         if (route == null)
             return ErrorPages.response(cfg, 404);
         if (!route.methods.isEmpty() && !route.methods.contains(req.method)) {
@@ -26,12 +98,17 @@ public class Router {
             r.headers.put("Allow", String.join(", ", route.methods));
             return r;
         }
+        if (!route.proxyPass.isEmpty())
+            return proxy.handle(route, req);
         // :redirect
         if (route.redirectTo != null) {
             Response r = Response.text(route.redirectCode, "Moved", "text/plain", "");
             r.headers.put("Location", route.redirectTo);
             return r;
         }
+        if (route.upload && "POST".equals(req.method)) {
+            return UploadHandler.handle(cfg, route, req);
+        }
         if (route.cgiExt != null && req.path.endsWith(route.cgiExt)) {
             return Response.text(501, "Not Implemented", "text/plain",
                     "CGI route matched but CGI handler not wired yet.\n");
@@ -42,14 +119,8 @@ public class Router {
 
     private Response serverStatic(ConfigLoader.Route route, HttpModels.Request req) {
         try {
-            Path root = Path.of(route.root).toAbsolutePath().normalize();
-            String rel = req.path.substring(route.pathPrefix.length());
-            if (rel.isEmpty())
-                rel = "/";
-            Path resolved = root.resolve(rel.substring(1)).normalize();
-
-            // prevent traversal
-            if (!resolved.startsWith(root))
+            Path resolved = resolve(route, req.path);
+            if (resolved == null)
                 return ErrorPages.response(cfg, 403);
 
             if (Files.isDirectory(resolved)) {
@@ -58,7 +129,7 @@ public class Router {
                     return filResponse(idx);
                 }
                 if (route.dirLilsting) {
-                    return Response.text(200, "OK", "text/plain", "Directory listing not implemented yet.\n");
+                    return Response.stream(200, "OK", "text/html; charset=utf-8", new DirectoryListing(resolved, req.path));
                 }
                 return ErrorPages.response(cfg, 403);
             }
@@ -78,7 +149,51 @@ public class Router {
         }
     }
 
+    // Maps a normalized request path to its file under the route root, null when it would leave the root.
+    // Only the mapping is cached, never whether the file exists, so changes on disk are seen right away.
+    private Path resolve(ConfigLoader.Route route, String path) {
+        ResolvedPaths cache = resolved.computeIfAbsent(route, ResolvedPaths::new);
+        Path p = cache.get(path);
+        if (p != null)
+            return p;
+        int from = route.pathPrefix.length();
+        while (from < path.length() && path.charAt(from) == '/')
+            from++;
+        p = cache.root.resolve(path.substring(from)).normalize();
+        // prevent traversal
+        if (!p.startsWith(cache.root))
+            return null;
+        cache.put(path, p);
+        return p;
+    }
+
+    // bounded LRU of normalized URL path -> resolved path for one route
+    private static final class ResolvedPaths {
+        final Path root;
+        private final LinkedHashMap<String, Path> paths = new LinkedHashMap<>(64, 0.75f, true);//access order
+
+        ResolvedPaths(ConfigLoader.Route route) {
+            this.root = Path.of(route.root).toAbsolutePath().normalize();
+        }
+
+        Path get(String path) {
+            return paths.get(path);
+        }
+
+        void put(String path, Path p) {
+            paths.put(path, p);
+            if (paths.size() > RESOLVED_CACHE_SIZE)
+                paths.remove(paths.keySet().iterator().next());
+        }
+    }
+
     private Response filResponse(Path p) throws Exception {
+        long size = Files.size(p);
+        if (size > STREAM_THRESHOLD) {
+            Response r = Response.stream(200, "OK", guessContentType(p), new FileBody(p, size));
+            r.headers.put("Content-Length", String.valueOf(size));
+            return r;
+        }
         Response r = new Response();
         r.status = 200;
         r.reason = "OK";
@@ -87,6 +202,93 @@ public class Router {
         return r;
     }
 
+    // file contents read straight into the outgoing buffer, one buffer per socket write
+    private static final class FileBody implements Response.BodyProducer {
+        private final FileChannel ch;
+        private long remaining;
+
+        FileBody(Path p, long size) throws IOException {
+            this.ch = FileChannel.open(p, StandardOpenOption.READ);
+            this.remaining = size;
+        }
+
+        @Override
+        public boolean produce(ByteBuffer out) throws IOException {
+            if (out.remaining() > remaining)
+                out.limit(out.position() + (int) remaining);
+            int n = ch.read(out);
+            if (n < 0)
+                throw new IOException("file shrank while sending");
+            remaining -= n;
+            return remaining > 0;
+        }
+
+        @Override
+        public void close() {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // HTML index generated one entry at a time, so huge directories never sit in memory
+    private static final class DirectoryListing implements Response.BodyProducer {
+        private final DirectoryStream<Path> dir;
+        private final Iterator<Path> entries;
+        private final String base;
+        private byte[] pending;
+        private int pendingPos;
+        private boolean footerQueued;
+
+        DirectoryListing(Path p, String urlPath) throws IOException {
+            this.dir = Files.newDirectoryStream(p);
+            this.entries = dir.iterator();
+            this.base = urlPath.endsWith("/") ? urlPath : urlPath + "/";
+            String title = escape(urlPath);
+            pending = ("<html><head><title>Index of " + title + "</title></head><body><h1>Index of " + title
+                    + "</h1><ul>\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public boolean produce(ByteBuffer out) {
+            while (out.hasRemaining()) {
+                if (pending == null) {
+                    if (entries.hasNext()) {
+                        Path e = entries.next();
+                        String name = e.getFileName().toString() + (Files.isDirectory(e) ? "/" : "");
+                        pending = ("<li><a href=\"" + escape(base + name) + "\">" + escape(name) + "</a></li>\n")
+                                .getBytes(StandardCharsets.UTF_8);
+                    } else if (!footerQueued) {
+                        pending = "</ul></body></html>\n".getBytes(StandardCharsets.UTF_8);
+                        footerQueued = true;
+                    } else {
+                        return false;
+                    }
+                    pendingPos = 0;
+                }
+                int n = Math.min(out.remaining(), pending.length - pendingPos);
+                out.put(pending, pendingPos, n);
+                pendingPos += n;
+                if (pendingPos == pending.length)
+                    pending = null;
+            }
+            return pending != null || entries.hasNext() || !footerQueued;
+        }
+
+        @Override
+        public void close() {
+            try {
+                dir.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static String escape(String s) {
+            return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        }
+    }
+
     private static String guessContentType(Path p) {
         String name = p.getFileName().toString().toLowerCase(Locale.ROOT);
         if (name.endsWith(".html") || name.endsWith(".htm"))
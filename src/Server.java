@@ -2,7 +2,14 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import javax.net.ssl.SSLContext;
 
 public class Server {
     private final ConfigLoader.Config cfg;
@@ -15,37 +22,117 @@ public class Server {
     private static final long HEADER_TIMEOUT_MS=10_000;//header not finished
     private static final long BODY_TIMEOUT_MS=20_000;//body not finished
 
+    //admission control
+    private final Map<Integer, Integer> perPortConnections=new HashMap<>();
+    private final ByteBuffer shed503;
+    // admission counters: written by the reactor only, volatile so admissionStats() can be read from any thread
+    private volatile long accepted, shedGlobalLimit, shedPortLimit, shedLatency;
+    private volatile int openConnections;
+    private double loopLatencyMs=0;//EWMA of the time spent handling one selection
+
+    //rate limiting, checked once per request head
+    private final RateLimiter limiter;
+    private final ByteBuffer tooMany429;
+    private final Response tooManyResponse;//HTTP/2 form, never mutated
+
+    //TLS: one context per TLS port, delegated handshake tasks run off the reactor and hand the connection back
+    private final Map<Integer, SSLContext> tlsContexts=new HashMap<>();
+    private ExecutorService tlsTasks;
+    private final Queue<ConnectionContext> tlsResumed=new ConcurrentLinkedQueue<>();
+
     public Server(ConfigLoader.Config cfg, Router router){
         this.cfg=cfg;
         this.router=router;
+        this.shed503=canned(503, "Service Unavailable", cfg.retryAfterSeconds, true);
+        this.limiter=new RateLimiter(cfg);
+        this.tooMany429=canned(429, "Too Many Requests", 1, false);
+        this.tooManyResponse=Response.text(429, "Too Many Requests", "text/plain", "429 Too Many Requests\n");
+        tooManyResponse.headers.put("Retry-After", "1");
+        if(!cfg.tls.isEmpty()) TlsConnection.configureJsse(cfg);
+        for(ConfigLoader.TlsPort t:cfg.tls){
+            try{
+                tlsContexts.put(t.port, TlsConnection.createContext(t, cfg));
+            }catch(Exception e){
+                throw new IllegalArgumentException("tls port "+t.port+": "+e.getMessage(), e);
+            }
+        }
+        if(!tlsContexts.isEmpty()){
+            tlsTasks=Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()-1), r->{
+                Thread t=new Thread(r, "tls-task");
+                t.setDaemon(true);
+                return t;
+            });
+        }
     }
-    public void run() throws IOException{
+
+    public RateLimiter rateLimiter(){
+        return limiter;
+    }
+
+    // immutable snapshot of the admission counters
+    public record AdmissionStats(long accepted, long shedGlobalLimit, long shedPortLimit, long shedLatency, int openConnections){}
+
+    public AdmissionStats admissionStats(){
+        return new AdmissionStats(accepted, shedGlobalLimit, shedPortLimit, shedLatency, openConnections);
+    }
+
+    // Opens the selector and binds the ports; run() does it when it was not done before. Connections made in
+    // between wait in the listen backlog.
+    public void listen() throws IOException{
         selector=Selector.open();
         //Bind multiple ports
         for(int port:cfg.ports){
             ServerSocketChannel ssc =ServerSocketChannel.open();
             ssc.configureBlocking(false);
             ssc.bind(new InetSocketAddress(cfg.host, port));
-            ssc.register(selector,SelectionKey.OP_ACCEPT);
+            ssc.register(selector,SelectionKey.OP_ACCEPT, port);
             System.out.println("Listening on" +cfg.host+":"+port);
 
         }
+        router.proxy().attach(selector);
+    }
+
+    public void run() throws IOException{
+        if(selector==null) listen();
         // event loop
         while(true){
             try{
-                selector.select(250);
+                ServerEvents.SelectorWakeup wakeup=new ServerEvents.SelectorWakeup();
+                wakeup.begin();
+                int selected=selector.select(250);
+                if(wakeup.shouldCommit()){
+                    wakeup.selectedKeys=selected;
+                    wakeup.commit();
+                }
+                ServerEvents.SelectorIteration iteration=new ServerEvents.SelectorIteration();
+                iteration.begin();
+                long started=System.nanoTime();
+                ConnectionContext resumed;
+                while((resumed=tlsResumed.poll())!=null) onTlsTasksDone(resumed);
                 Iterator<SelectionKey> it=selector.selectedKeys().iterator();
                 while(it.hasNext()){
                     SelectionKey key=it.next();
                     it.remove();
 
                     if(!key.isValid())continue;
+                    if(key.attachment() instanceof ProxyHandler.Conn){
+                        router.proxy().onReady(key);
+                        continue;
+                    }
 
                     if(key.isAcceptable())onAccept(key);
                     if(key.isReadable())onRead(key);
-                    if(key.isWritable())onWrite(key);
+                    if(key.isValid() && key.isWritable())onWrite(key);
                 }
                 enforceTimouts();
+                double took=(System.nanoTime()-started)/1_000_000.0;
+                loopLatencyMs+=(took-loopLatencyMs)*0.2;
+                if(iteration.shouldCommit()){
+                    iteration.keys=selected;
+                    iteration.openConnections=contexts.size();
+                    iteration.loopLatencyEwma=(long) loopLatencyMs;
+                    iteration.commit();
+                }
 
             }catch(Exception e){
                 System.err.println("Loop error:"+e.getMessage());
@@ -53,17 +140,93 @@ public class Server {
             }
         }
     }
+    // Drains up to cfg.acceptBatch pending connections; over-limit ones get a canned 503 and are closed unparsed.
     private void onAccept(SelectionKey key)throws IOException{
         ServerSocketChannel ssc=(ServerSocketChannel) key.channel();
-        SocketChannel ch =ssc.accept();
-        if (ch==null)return ;
-        ch.configureBlocking(false);
-        ch.socket().setTcpNoDelay(true);
+        int port=(Integer) key.attachment();
+        ServerEvents.Accept event=new ServerEvents.Accept();
+        event.begin();
+        try{
+            acceptBatch(ssc, port, event);
+        }finally{
+            if(event.shouldCommit()){
+                event.port=port;
+                event.commit();
+            }
+        }
+    }
+
+    private void acceptBatch(ServerSocketChannel ssc, int port, ServerEvents.Accept event)throws IOException{
+        for(int i=0;i<cfg.acceptBatch;i++){
+            SocketChannel ch =ssc.accept();
+            if (ch==null)return ;
+            ch.configureBlocking(false);
+
+            if(shouldShed(port)){
+                if(tlsContexts.containsKey(port)) closeQuietly(ch);//a plaintext 503 means nothing to a TLS client
+                else shed(ch);
+                event.shed++;
+                continue;
+            }
+            event.accepted++;
+            ch.socket().setTcpNoDelay(true);
+            accepted++;
+
+            ConnectionContext ctx=new ConnectionContext(ch, port, this::openBodySink);
+            InetSocketAddress remote=(InetSocketAddress) ch.getRemoteAddress();
+            ctx.parser.remoteAddr=remote.getAddress().getHostAddress();
+            ctx.clientKey=RateLimiter.clientKey(remote.getAddress());
+            SSLContext ssl=tlsContexts.get(port);
+            if(ssl!=null){
+                ctx.tls=new TlsConnection(ssl, ch, tlsTasks, ()->{
+                    tlsResumed.add(ctx);
+                    selector.wakeup();
+                });
+            }
+            contexts.put(ch,ctx);
+            openConnections=contexts.size();
+            perPortConnections.merge(port, 1, Integer::sum);
+
+            ch.register(selector,SelectionKey.OP_READ);
+        }
+    }
+
+    private boolean shouldShed(int port){
+        if(cfg.maxConnections>0 && contexts.size()>=cfg.maxConnections){
+            shedGlobalLimit++;
+            return true;
+        }
+        if(cfg.maxConnectionsPerPort>0 && perPortConnections.getOrDefault(port, 0)>=cfg.maxConnectionsPerPort){
+            shedPortLimit++;
+            return true;
+        }
+        if(cfg.shedLatencyMs>0 && loopLatencyMs>cfg.shedLatencyMs){
+            shedLatency++;
+            return true;
+        }
+        return false;
+    }
 
-        ConnectionContext ctx=new ConnectionContext(ch);
-        contexts.put(ch,ctx);
+    // best effort: a single non-blocking write, whatever does not fit in the socket buffer is dropped
+    private void shed(SocketChannel ch){
+        try{
+            ch.write(shed503.duplicate());
+        }catch(IOException ignored){
+        }
+        closeQuietly(ch);
+    }
 
-        ch.register(selector,SelectionKey.OP_READ);
+    private static ByteBuffer canned(int status, String reason, int retryAfterSeconds, boolean close){
+        String body=status+" "+reason+"\n";
+        String head="HTTP/1.1 "+status+" "+reason+"\r\n"+
+        "Retry-After: "+retryAfterSeconds+"\r\n"+
+        "Content-Type: text/plain; charset=utf-8\r\n"+
+        "Content-Length: "+body.length()+"\r\n"+
+        (close?"Connection: close\r\n":"")+"\r\n";
+        byte[] bytes=(head+body).getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buf=ByteBuffer.allocateDirect(bytes.length);
+        buf.put(bytes).flip();
+        return buf.asReadOnlyBuffer();
     }
 
     private void onRead(SelectionKey key){
@@ -72,41 +235,204 @@ public class Server {
         if(ctx==null){closeQuietly(ch);return;}
         ctx.lastActivityMs=System.currentTimeMillis();
         try{
-            int n =ch.read(ctx.readBuffer);
+            int n =ctx.tls!=null?ctx.tls.read(ctx.readBuffer):ch.read(ctx.readBuffer);
             if(n==-1){closeConnection(ch);return;}
+            if(ctx.tls!=null) tlsInterest(key, ctx);
             if(n==0)return;
-            ctx.readBuffer.flip();
+            processInput(key, ctx);
+        }catch(IOException e){
+            closeConnection(ch);
+        }
+    }
 
-            while(true){
-                HttpParser.ParseResult pr=ctx.parser.parse(ctx.readBuffer,cfg.clientBodyLimitBytes);
-                if(pr.status==HttpParser.Status.NEED_MORE)break;
-                if(pr.status==HttpParser.Status.ERROR){
-                    Response res=ErrorPages.response(cfg,400);
+    // handshake traffic is driven from here: reads stop while a delegated task runs, writes wait for the socket
+    private void tlsInterest(SelectionKey key, ConnectionContext ctx){
+        if(!key.isValid())return;
+        if(ctx.tls.isTaskRunning()) key.interestOps(0);
+        else if(ctx.tls.hasPendingOutput()) key.interestOps(key.interestOps()|SelectionKey.OP_WRITE);
+    }
+
+    private void onTlsTasksDone(ConnectionContext ctx){
+        SelectionKey key=ctx.ch.keyFor(selector);
+        if(contexts.get(ctx.ch)!=ctx || key==null || !key.isValid())return;
+        try{
+            key.interestOps(SelectionKey.OP_READ);
+            int n=ctx.tls.unwrapBuffered(ctx.readBuffer);
+            tlsInterest(key, ctx);
+            if(n>0) processInput(key, ctx);
+        }catch(IOException e){
+            closeConnection(ctx.ch);
+        }
+    }
+
+    // Parses and answers whatever requests are buffered, then anything TLS still holds decrypted-to-be.
+    private void processInput(SelectionKey key, ConnectionContext ctx){
+        try{
+            do{
+                parseInput(key, ctx);
+            }while(ctx.tls!=null && contexts.get(ctx.ch)==ctx && ctx.tls.unwrapBuffered(ctx.readBuffer)>0);
+            if(ctx.tls!=null) tlsInterest(key, ctx);
+        }catch(IOException e){
+            closeConnection(ctx.ch);
+        }
+    }
+
+    // readBuffer is in fill mode before and after.
+    private void parseInput(SelectionKey key, ConnectionContext ctx){
+        ctx.readBuffer.flip();
+
+        // ALPN picked h2: the client preface follows the handshake
+        if(ctx.h2==null && ctx.tls!=null && ctx.parser.stage==HttpParser.Stage.START && "h2".equals(ctx.tls.applicationProtocol())){
+            ctx.h2=new Http2Connection(h2Handler(ctx), ctx.writeQueue::add, ()->h2Interest(key, ctx), cfg);
+            ctx.h2.remoteAddr=ctx.parser.remoteAddr;
+        }
+
+        // h2c with prior knowledge: the client preface replaces the first request line
+        if(ctx.h2==null && ctx.parser.stage==HttpParser.Stage.START && Http2Connection.maybePreface(ctx.readBuffer)){
+            if(ctx.readBuffer.remaining()<Http2Connection.PREFACE.length){
+                ctx.readBuffer.compact();
+                return;
+            }
+            ctx.h2=new Http2Connection(h2Handler(ctx), ctx.writeQueue::add, ()->h2Interest(key, ctx), cfg);
+            ctx.h2.remoteAddr=ctx.parser.remoteAddr;
+        }
+        if(ctx.h2!=null){
+            ctx.h2.onInput(ctx.readBuffer);
+            ctx.readBuffer.compact();
+            // peer sent GOAWAY and nothing is left to answer
+            if(ctx.h2.isClosed() && ctx.drained()){
+                closeConnection(ctx.ch);
+                return;
+            }
+            h2Interest(key, ctx);
+            return;
+        }
+
+        // a streamed or pending response holds back pipelined requests until its last chunk is queued
+        while(ctx.readBuffer.hasRemaining() && ctx.streaming==null && !ctx.awaiting && !ctx.closeAfterWrite){
+            HttpParser.ParseResult pr=ctx.parser.parse(ctx.readBuffer,cfg.clientBodyLimitBytes);
+            if(pr.status==HttpParser.Status.NEED_MORE)break;
+            if(pr.status==HttpParser.Status.ERROR){
+                if(pr.errorCode==429){
+                    ctx.writeQueue.add(tooMany429.duplicate());
+                }else{
+                    Response res=ErrorPages.response(cfg,pr.errorCode);
                     ctx.enqueue(res.toByteBuffers());
-                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                key.interestOps(SelectionKey.OP_WRITE);
+                ctx.closeAfterWrite=true;
+                break;
+            }
+            HttpModels.Request req=pr.request;
+            // requests with a body were already charged when their sink was opened
+            boolean admitted=ctx.admitted==req || admit(ctx, req);
+            ctx.admitted=null;
+            if(!admitted){
+                ctx.writeQueue.add(tooMany429.duplicate());
+                key.interestOps(SelectionKey.OP_WRITE);
+                // the client asked for the connection to end with this request
+                if("close".equalsIgnoreCase(req.headers.getOrDefault("connection", ""))){
                     ctx.closeAfterWrite=true;
                     break;
                 }
-                HttpModels.Request req=pr.request;
-                Response res;
-                try {
-                    res=router.handle(req);
-
-                } catch(Exception e){
-                    System.err.println("Handler error: "+e.getMessage());
-                    e.printStackTrace();
-                    res=ErrorPages.response(cfg, 500);
+                continue;
+            }
+            if(Http2Connection.isUpgradeRequest(req)){
+                // stream 1 is this request, already charged above
+                ctx.admitted=req;
+                ctx.h2=Http2Connection.upgrade(h2Handler(ctx), ctx.writeQueue::add, ()->h2Interest(key, ctx), cfg, req);
+                ctx.admitted=null;
+                if(ctx.h2!=null){
+                    ctx.h2.onInput(ctx.readBuffer);
+                    ctx.readBuffer.compact();
+                    h2Interest(key, ctx);
+                    return;
                 }
-                ctx.enqueue(res.toByteBuffers());
-                boolean close ="close".equalsIgnoreCase(req.headers.getOrDefault("connection", ""));
-                if(close || res.closeAfterWrite) ctx.closeAfterWrite=true;
-                key.interestOps(SelectionKey.OP_WRITE);
-                if(ctx.readBuffer.remaining()==0)break;
             }
-            ctx.readBuffer.compact();
-        }catch(IOException e){
-            closeConnection(ch);
+            Response res=dispatch(req);
+            boolean close ="close".equalsIgnoreCase(req.headers.getOrDefault("connection", ""));
+            if(res.pending!=null){
+                // answered later (proxy): nothing is read or written for this connection until it completes
+                ctx.awaiting=true;
+                key.interestOps(ctx.drained()?0:SelectionKey.OP_WRITE);
+                res.pending.onComplete(r->{
+                    ctx.awaiting=false;
+                    if(contexts.get(ctx.ch)!=ctx || !key.isValid()){
+                        if(r.producer!=null) r.producer.close();
+                        return;
+                    }
+                    respond(key, ctx, r, close);
+                });
+                continue;
+            }
+            respond(key, ctx, res, close);
+        }
+        // a backed-up request body sink pauses reading until it drains
+        HttpModels.BodySink sink=ctx.parser.activeSink();
+        if(sink!=null && sink.backlogged() && key.isValid()){
+            ctx.readPaused=true;
+            key.interestOps(key.interestOps()&~SelectionKey.OP_READ);
+            sink.onDrained(()->{
+                ctx.readPaused=false;
+                if(contexts.get(ctx.ch)!=ctx || !key.isValid())return;
+                key.interestOps(key.interestOps()|SelectionKey.OP_READ);
+                if(ctx.readBuffer.position()>0) processInput(key, ctx);
+            });
         }
+        ctx.readBuffer.compact();
+    }
+
+    private void respond(SelectionKey key, ConnectionContext ctx, Response res, boolean close){
+        if(close) res.closeAfterWrite=true;
+        ctx.enqueue(res.toByteBuffers());
+        if(res.closeAfterWrite) ctx.closeAfterWrite=true;
+        if(res.producer!=null){
+            ctx.streaming=res;
+            // a producer that ran dry asks to be pulled again once it has data
+            res.producer.onReady(()->{
+                if(key.isValid()) key.interestOps(key.interestOps()|SelectionKey.OP_WRITE);
+            });
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private Function<HttpModels.Request, Response> h2Handler(ConnectionContext ctx){
+        return r->ctx.admitted==r || admit(ctx, r)?dispatch(r):tooManyResponse;
+    }
+
+    private boolean admit(ConnectionContext ctx, HttpModels.Request req){
+        return !limiter.enabled() || limiter.allow(ctx.clientKey, router.match(req.path), System.currentTimeMillis());
+    }
+
+    // the rate limit is checked before a body is streamed anywhere
+    private HttpModels.BodySink openBodySink(ConnectionContext ctx, HttpModels.Request req){
+        if(!admit(ctx, req))return RATE_LIMITED;
+        ctx.admitted=req;
+        return router.openBodySink(req);
+    }
+
+    private static final HttpModels.BodySink RATE_LIMITED=new HttpModels.BodySink(){
+        public boolean write(ByteBuffer chunk){return false;}
+        public boolean finish(){return false;}
+        public void abort(){}
+        public int errorStatus(){return 429;}
+    };
+
+    private Response dispatch(HttpModels.Request req){
+        try {
+            return router.handle(req);
+        } catch(Exception e){
+            System.err.println("Handler error: "+e.getMessage());
+            e.printStackTrace();
+            return ErrorPages.response(cfg, 500);
+        }
+    }
+
+    // h2 reads (PING, WINDOW_UPDATE may arrive mid-response) unless its output is backed up, and writes while frames are queued
+    private void h2Interest(SelectionKey key, ConnectionContext ctx){
+        if(!key.isValid())return;
+        int ops=ctx.h2.outputBacklogged()?0:SelectionKey.OP_READ;
+        key.interestOps(ctx.drained()?ops:ops|SelectionKey.OP_WRITE);
     }
 
     private void onWrite(SelectionKey key){
@@ -115,24 +441,89 @@ public class Server {
         if(ctx==null){closeQuietly(ch); return;}
 
         ctx.lastActivityMs=System.currentTimeMillis();
+        ServerEvents.WriteFlush flush=new ServerEvents.WriteFlush();
+        flush.begin();
+        long writesBefore=ctx.socketWrites();
         try{
-            while(!ctx.writeQueue.isEmpty()){
-                ByteBuffer buf =ctx.writeQueue.peek();
-                ch.write(buf);
-                if(buf.hasRemaining()) break;
-                ctx.writeQueue.poll();
+            while(true){
+                if(ctx.tls!=null && !ctx.tls.flush())break;
+                while(!ctx.writeQueue.isEmpty()){
+                    ByteBuffer buf =ctx.writeQueue.peek();
+                    flush.bytes+=ctx.write(buf);
+                    if(buf.hasRemaining()) break;
+                    ctx.writeQueue.poll();
+                    if(ctx.h2!=null) ctx.h2.onFrameWritten(buf);
+                    utils.BufferPool.recycle(buf);
+                    if(ctx.h2!=null && ctx.writeQueue.isEmpty()) ctx.h2.pump();
+                }
+                // socket drained: pull the next chunk of a streamed body
+                if(!ctx.writeQueue.isEmpty() || ctx.streaming==null || !pullChunk(ctx))break;
             }
-            if(ctx.writeQueue.isEmpty()){
+            if(ctx.h2!=null){
+                if(ctx.drained() && ctx.h2.isClosed()){
+                    closeConnection(ch);
+                    return;
+                }
+                h2Interest(key, ctx);
+                return;
+            }
+            if(ctx.drained()){
                 if(ctx.closeAfterWrite){
                     closeConnection(ch);
                     return;
                 }
-                key.interestOps(SelectionKey.OP_READ);
+                // waiting on a producer or a pending response: their callbacks re-arm the key
+                if(ctx.streaming!=null || ctx.awaiting){
+                    key.interestOps(0);
+                    return;
+                }
+                key.interestOps(ctx.readPaused?0:SelectionKey.OP_READ);
+                // pipelined requests that waited behind a streamed response
+                if(ctx.readBuffer.position()>0) processInput(key, ctx);
             }
         }catch(IOException e){
             closeConnection(ch);
+        }finally{
+            if(flush.shouldCommit()){
+                flush.writes=(int)(ctx.socketWrites()-writesBefore);
+                flush.drained=ctx.drained();
+                flush.tls=ctx.tls!=null;
+                flush.commit();
+            }
+        }
+    }
+
+    // Queues the next piece of ctx.streaming; false when nothing was queued.
+    private boolean pullChunk(ConnectionContext ctx) throws IOException{
+        Response res=ctx.streaming;
+        boolean chunked=res.isChunked();
+        ByteBuffer buf=Response.BODY_POOL.acquire();
+        int start=chunked?ResponseEncoder.CHUNK_HEADER_RESERVE:0;
+        buf.position(start);
+        if(chunked) buf.limit(buf.capacity()-ResponseEncoder.CHUNK_TRAILER_RESERVE);
+        boolean more;
+        try{
+            more=res.producer.produce(buf);
+        }catch(Exception e){
+            // the head is out, so the client only learns of it from the connection closing (closeConnection closes the producer)
+            Response.BODY_POOL.release(buf);
+            if(e instanceof IOException io)throw io;
+            System.err.println("Body producer error: "+e);
+            throw new IOException("body producer failed", e);
+        }
+        if(buf.position()>start){
+            ctx.writeQueue.add(chunked?ResponseEncoder.frameChunk(buf):buf.flip());
+        }else{
+            Response.BODY_POOL.release(buf);
+        }
+        if(!more){
+            if(chunked) ctx.writeQueue.add(ResponseEncoder.lastChunk(res.producer.trailers()));
+            res.producer.close();
+            ctx.streaming=null;
         }
+        return !ctx.writeQueue.isEmpty();
     }
+
     private void enforceTimouts(){
         long now =System.currentTimeMillis();
         List<SocketChannel> toClose =new ArrayList<>();
@@ -140,28 +531,53 @@ public class Server {
         for(var entry:contexts.entrySet()){
             SocketChannel ch =entry.getKey();
             ConnectionContext ctx=entry.getValue();
+            // waiting on an upstream is not idleness, the proxy's connect and read timeouts bound that wait
+            if(ctx.awaiting || (ctx.streaming!=null && ctx.drained()) || (ctx.h2!=null && ctx.h2.awaitingResponses()))
+                ctx.lastActivityMs=now;
             long idle=now-ctx.lastActivityMs;
             if(idle>IDLE_TIMEOUT_MS){
-                toClose.add(ch);
+                timedOut(toClose, ctx, "idle", idle);
                 continue;
             }
 
             long stageAge=now -ctx.parser.stageStarMs;
             switch (ctx.parser.stage) {
                 case HEADERS -> {
-                    if(stageAge>HEADER_TIMEOUT_MS) toClose.add(ch);
+                    if(stageAge>HEADER_TIMEOUT_MS) timedOut(toClose, ctx, "headers", stageAge);
                 }
                     
             case BODY, CHUNKED ->{
-                if(stageAge>BODY_TIMEOUT_MS)toClose.add(ch);
+                if(stageAge>BODY_TIMEOUT_MS)timedOut(toClose, ctx, "body", stageAge);
             }
                 default->{}
             }
         }
         for(SocketChannel ch:toClose) closeConnection(ch);
+        router.proxy().enforceTimeouts(now);
+        limiter.sweep(now);
+    }
+
+    private static void timedOut(List<SocketChannel> toClose, ConnectionContext ctx, String reason, long age){
+        toClose.add(ctx.ch);
+        ServerEvents.TimeoutClose e=new ServerEvents.TimeoutClose();
+        if(!e.isEnabled())return;
+        e.reason=reason;
+        e.peer=ctx.parser.remoteAddr;
+        e.age=age;
+        e.commit();
     }
     private void closeConnection(SocketChannel ch){
-        contexts.remove(ch);
+        ConnectionContext ctx=contexts.remove(ch);
+        if(ctx!=null){
+            openConnections=contexts.size();
+            perPortConnections.merge(ctx.port, -1, Integer::sum);
+            ctx.releaseBuffers();
+            HttpModels.BodySink sink=ctx.parser.activeSink();
+            if(sink!=null) sink.abort();
+            if(ctx.streaming!=null) ctx.streaming.producer.close();
+            if(ctx.h2!=null) ctx.h2.close();
+            if(ctx.tls!=null) ctx.tls.close();
+        }
         closeQuietly(ch);
     }
     private static void closeQuietly(Channel ch){
@@ -173,13 +589,49 @@ public class Server {
     }
     static final class ConnectionContext{
         final SocketChannel ch;
+        final int port;
         final ByteBuffer readBuffer=ByteBuffer.allocateDirect(64*1024);
         final Deque<ByteBuffer> writeQueue=new ArrayDeque<>();
-        final HttpParser parser= new HttpParser();
+        final HttpParser parser;
+
+        Http2Connection h2;//set once the connection switched to HTTP/2
+        Response streaming;//HTTP/1.1 response whose body is still being pulled
+        TlsConnection tls;//set on TLS ports
 
         long lastActivityMs=System.currentTimeMillis();
         boolean closeAfterWrite=false;
-        ConnectionContext(SocketChannel ch){this.ch=ch;}
+        boolean awaiting;//a pending response has not completed yet
+        boolean readPaused;//request body sink is backed up
+        long clientKey;//RateLimiter key of the remote address
+        HttpModels.Request admitted;//already charged by the rate limiter when its body sink opened
+        long plainWrites;//for the JFR events only
+        ConnectionContext(SocketChannel ch, int port, BiFunction<ConnectionContext, HttpModels.Request, HttpModels.BodySink> sinks){
+            this.ch=ch;
+            this.port=port;
+            this.parser=new HttpParser(r->sinks.apply(this, r));
+        }
         void enqueue(List<ByteBuffer> bufs){writeQueue.addAll(bufs);}
+        // plaintext bytes taken from buf
+        int write(ByteBuffer buf) throws IOException{
+            if(tls==null){
+                plainWrites++;
+                return ch.write(buf);
+            }
+            int before=buf.position();
+            tls.write(buf);
+            return buf.position()-before;
+        }
+        // write calls made on the socket so far, TLS records included
+        long socketWrites(){
+            return plainWrites+(tls==null?0:tls.socketWrites);
+        }
+        // nothing queued and no ciphertext waiting for the socket
+        boolean drained(){
+            return writeQueue.isEmpty() && (tls==null || !tls.hasPendingOutput());
+        }
+        void releaseBuffers(){
+            for(ByteBuffer b:writeQueue) utils.BufferPool.recycle(b);
+            writeQueue.clear();
+        }
     }
 }
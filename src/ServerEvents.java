@@ -0,0 +1,140 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder events for the reactor and the request lifecycle. All are off unless a recording enables
+// them (see localserver.jfc); callers allocate an event and check isEnabled()/shouldCommit() before filling it,
+// which the JIT reduces to a flag test when recording is off.
+public class ServerEvents {
+    private ServerEvents() {}
+
+    @Name("localserver.SelectorWakeup")
+    @Label("Selector Wakeup")
+    @Description("Time blocked in Selector.select and how many keys it returned")
+    @Category({"LocalServer", "Reactor"})
+    @StackTrace(false)
+    public static final class SelectorWakeup extends Event {
+        @Label("Selected Keys")
+        public int selectedKeys;
+    }
+
+    @Name("localserver.SelectorIteration")
+    @Label("Selector Iteration")
+    @Description("Handling of one batch of selected keys, including the timeout sweep")
+    @Category({"LocalServer", "Reactor"})
+    @StackTrace(false)
+    public static final class SelectorIteration extends Event {
+        @Label("Keys")
+        public int keys;
+        @Label("Open Connections")
+        public int openConnections;
+        @Label("Loop Latency EWMA")
+        @Timespan(Timespan.MILLISECONDS)
+        public long loopLatencyEwma;
+    }
+
+    @Name("localserver.Accept")
+    @Label("Accept")
+    @Description("One batch of accepts on a listening port")
+    @Category({"LocalServer", "Reactor"})
+    @StackTrace(false)
+    public static final class Accept extends Event {
+        @Label("Port")
+        public int port;
+        @Label("Accepted")
+        public int accepted;
+        @Label("Shed")
+        public int shed;
+    }
+
+    @Name("localserver.ParserStage")
+    @Label("Parser Stage")
+    @Description("HttpParser moved to another stage; time is what the previous stage took")
+    @Category({"LocalServer", "HTTP"})
+    @StackTrace(false)
+    public static final class ParserStage extends Event {
+        @Label("From")
+        public String from;
+        @Label("To")
+        public String to;
+        @Label("Time In Stage")
+        @Timespan(Timespan.NANOSECONDS)
+        public long timeInStage;
+    }
+
+    @Name("localserver.RequestParsed")
+    @Label("Request Parsed")
+    @Description("A request head and body were parsed, or parsing failed")
+    @Category({"LocalServer", "HTTP"})
+    @StackTrace(false)
+    public static final class RequestParsed extends Event {
+        @Label("Method")
+        public String method;
+        @Label("Path")
+        public String path;
+        @Label("Error Status")
+        public int errorStatus;
+        @Label("Parse Time")
+        @Description("From the first byte of the request line to the end of the body")
+        @Timespan(Timespan.NANOSECONDS)
+        public long parseTime;
+        @Label("Streamed Body")
+        public boolean streamed;
+    }
+
+    @Name("localserver.RouteHandle")
+    @Label("Route Handle")
+    @Description("Router.handle for one request, until the response head is known for responses that complete later")
+    @Category({"LocalServer", "HTTP"})
+    @StackTrace(false)
+    public static final class RouteHandle extends Event {
+        @Label("Route")
+        public String route;
+        @Label("Method")
+        public String method;
+        @Label("Path")
+        public String path;
+        @Label("Status")
+        public int status;
+    }
+
+    @Name("localserver.WriteFlush")
+    @Label("Write Flush")
+    @Description("One writable event on a client connection")
+    @Category({"LocalServer", "Reactor"})
+    @StackTrace(false)
+    public static final class WriteFlush extends Event {
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Socket Writes")
+        @Description("write calls on the socket, TLS records included")
+        public int writes;
+        @Label("Drained")
+        @Description("Nothing left queued afterwards")
+        public boolean drained;
+        @Label("TLS")
+        public boolean tls;
+    }
+
+    @Name("localserver.TimeoutClose")
+    @Label("Timeout Close")
+    @Description("A connection closed by the timeout sweep")
+    @Category({"LocalServer", "Reactor"})
+    @StackTrace(false)
+    public static final class TimeoutClose extends Event {
+        @Label("Reason")
+        public String reason;
+        @Label("Peer")
+        public String peer;
+        @Label("Age")
+        @Description("Time since the last activity, or since the timed stage started")
+        @Timespan(Timespan.MILLISECONDS)
+        public long age;
+    }
+}
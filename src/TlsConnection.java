@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+
+// TLS for one connection: ciphertext lives in pooled direct buffers that are only held while they carry data,
+// plaintext goes straight to and from the connection's own buffers. Delegated handshake tasks (certificate
+// signing and the like) run on the executor; the reactor leaves the connection alone until tasksDone runs.
+public class TlsConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final String[] ALPN = {"h2", "http/1.1"};//server preference order
+    private static final String TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    // sized by the first engine; large fragments are not accepted, so every record fits
+    private static utils.BufferPool netPool;
+
+    private final SSLEngine engine;
+    private final SocketChannel ch;
+    private final Executor tasks;
+    private final Runnable tasksDone;
+    private ByteBuffer netIn;//fill mode
+    private ByteBuffer netOut;//read mode
+    private volatile boolean taskRunning;
+    private boolean handshakeDone;
+    private boolean closed;
+    long socketWrites;//for the JFR events only
+
+    public TlsConnection(SSLContext context, SocketChannel ch, Executor tasks, Runnable tasksDone) {
+        this.engine = context.createSSLEngine();
+        this.ch = ch;
+        this.tasks = tasks;
+        this.tasksDone = tasksDone;
+        engine.setUseClientMode(false);
+        SSLParameters params = engine.getSSLParameters();
+        params.setApplicationProtocols(ALPN);
+        params.setUseCipherSuitesOrder(true);
+        engine.setSSLParameters(params);
+        synchronized (TlsConnection.class) {
+            if (netPool == null)
+                netPool = new utils.BufferPool(engine.getSession().getPacketBufferSize(), 1024);
+        }
+    }
+
+    // Stateless session tickets are a JSSE system property read once when JSSE initialises, so they are set
+    // here, once, before the first context is built. A value already given on the command line, or by an
+    // earlier configuration in this JVM, that disagrees is an error rather than silently ignored.
+    public static synchronized void configureJsse(ConfigLoader.Config cfg) {
+        String want = String.valueOf(cfg.tlsSessionTickets);
+        String have = System.getProperty(TICKETS_PROPERTY);
+        if (have != null && !have.equalsIgnoreCase(want))
+            throw new IllegalArgumentException("tlsSessionTickets=" + want + " conflicts with " + TICKETS_PROPERTY + "=" + have);
+        System.setProperty(TICKETS_PROPERTY, want);
+    }
+
+    // Builds the context for one TLS port, after configureJsse. Session caching is JSSE's own.
+    public static SSLContext createContext(ConfigLoader.TlsPort port, ConfigLoader.Config cfg) throws Exception {
+        KeyStore ks = KeyStore.getInstance(port.keystoreType);
+        char[] password = port.keystorePassword.toCharArray();
+        try (InputStream in = Files.newInputStream(Path.of(port.keystore))) {
+            ks.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, password);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext sessions = ctx.getServerSessionContext();
+        sessions.setSessionCacheSize(cfg.tlsSessionCacheSize);
+        sessions.setSessionTimeout(cfg.tlsSessionTimeoutSeconds);
+        return ctx;
+    }
+
+    // negotiated ALPN protocol, "" until the handshake is done or when the client sent none
+    public String applicationProtocol() {
+        String p = engine.getApplicationProtocol();
+        return p == null ? "" : p;
+    }
+
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    public boolean isTaskRunning() {
+        return taskRunning;
+    }
+
+    // true while ciphertext is waiting for the socket
+    public boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    // Reads what the socket has and decrypts it into dst. Returns plaintext bytes produced, -1 once the
+    // peer closed (socket EOF or close_notify) and nothing was produced.
+    public int read(ByteBuffer dst) throws IOException {
+        if (taskRunning)
+            return 0;
+        if (netIn == null)
+            netIn = netPool.acquire();
+        int n = ch.read(netIn);
+        int produced = unwrap(dst);
+        if (produced == 0 && (n < 0 || closed))
+            return -1;
+        return produced;
+    }
+
+    // decrypts records already buffered and continues the handshake, after dst made room or a delegated task finished
+    public int unwrapBuffered(ByteBuffer dst) throws IOException {
+        if (taskRunning)
+            return 0;
+        return unwrap(dst);
+    }
+
+    private int unwrap(ByteBuffer dst) throws IOException {
+        int produced = 0;
+        try {
+            while (!closed && !taskRunning) {
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    break;
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (!wrap(EMPTY))
+                        break;
+                    continue;
+                }
+                if (netIn == null)
+                    break;
+                netIn.flip();
+                SSLEngineResult r;
+                try {
+                    r = engine.unwrap(netIn, dst);
+                } finally {
+                    netIn.compact();
+                }
+                produced += r.bytesProduced();
+                if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+                    handshakeDone = true;
+                if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    closed = true;
+                    break;
+                }
+                // underflow wants more socket data, overflow wants dst drained by the parser
+                if (r.getStatus() != SSLEngineResult.Status.OK)
+                    break;
+                if (r.bytesConsumed() == 0 && r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP
+                        && r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK)
+                    break;
+            }
+        } finally {
+            if (netIn != null && netIn.position() == 0) {
+                netPool.release(netIn);
+                netIn = null;
+            }
+        }
+        return produced;
+    }
+
+    // Encrypts as much of src as the socket takes. Plaintext counts as written once it is encrypted; the
+    // last record may still sit in netOut, see hasPendingOutput.
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining() && !taskRunning) {
+            if (!flush())
+                return;
+            if (!wrap(src))
+                return;
+        }
+    }
+
+    // false while ciphertext is still pending
+    public boolean flush() throws IOException {
+        if (netOut == null)
+            return true;
+        ch.write(netOut);
+        socketWrites++;
+        if (netOut.hasRemaining())
+            return false;
+        netPool.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    // one wrap into netOut, then a flush attempt
+    private boolean wrap(ByteBuffer src) throws IOException {
+        if (netOut != null && !flush())
+            return false;
+        ByteBuffer out = netPool.acquire();
+        SSLEngineResult r;
+        try {
+            r = engine.wrap(src, out);
+        } catch (SSLException e) {
+            netPool.release(out);
+            throw e;
+        }
+        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+            handshakeDone = true;
+        if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+            closed = true;
+        if (out.position() == 0) {
+            netPool.release(out);
+            return r.getStatus() == SSLEngineResult.Status.OK;
+        }
+        netOut = out.flip();
+        return flush();
+    }
+
+    private void runTasks() {
+        taskRunning = true;
+        tasks.execute(() -> {
+            Runnable t;
+            while ((t = engine.getDelegatedTask()) != null)
+                t.run();
+            taskRunning = false;
+            tasksDone.run();
+        });
+    }
+
+    // best effort close_notify, whatever does not fit in the socket buffer is dropped
+    public void close() {
+        if (!taskRunning) {
+            try {
+                engine.closeOutbound();
+                flush();
+                if (netOut == null)
+                    wrap(EMPTY);
+            } catch (IOException ignored) {
+            }
+        }
+        if (netIn != null)
+            netPool.release(netIn);
+        if (netOut != null)
+            netPool.release(netOut);
+        netIn = null;
+        netOut = null;
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// multipart/form-data uploads streamed straight to the route root, heap use independent of upload size.
+// Each file part goes to a temp file next to its target and is renamed over it only once the part is
+// complete, so a failed or dropped upload never touches an existing file.
+public class UploadHandler {
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_BOUNDARY = 70;//RFC 2046
+
+    // null when the request is not multipart, the router then answers 415
+    public static HttpModels.BodySink open(ConfigLoader.Route route, HttpModels.Request req) {
+        String boundary = boundary(req.headers.getOrDefault("content-type", ""));
+        if (boundary == null)
+            return null;
+        return new MultipartSink(Path.of(route.root).toAbsolutePath().normalize(), boundary,
+                route.uploadMaxFileBytes, route.uploadMaxTotalBytes);
+    }
+
+    public static Response handle(ConfigLoader.Config cfg, ConfigLoader.Route route, HttpModels.Request req) {
+        MultipartSink sink;
+        if (req.bodySink instanceof MultipartSink) {
+            sink = (MultipartSink) req.bodySink;
+        } else {
+            // body arrived buffered (HTTP/2): run it through the same parser
+            sink = (MultipartSink) open(route, req);
+            if (sink == null)
+                return ErrorPages.response(cfg, 415);
+            if (!sink.write(ByteBuffer.wrap(req.body)) || !sink.finish()) {
+                sink.abort();
+                return ErrorPages.response(cfg, sink.errorStatus());
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sink.saved.size(); i++)
+            sb.append("Saved ").append(sink.saved.get(i).getFileName()).append(" (").append(sink.savedBytes.get(i)).append(" bytes)\n");
+        if (sink.saved.isEmpty())
+            sb.append("No files uploaded\n");
+        return Response.text(201, "Created", "text/plain", sb.toString());
+    }
+
+    static String boundary(String contentType) {
+        if (!contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data"))
+            return null;
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (!param.toLowerCase(Locale.ROOT).startsWith("boundary="))
+                continue;
+            String b = param.substring(9).trim();
+            if (b.length() >= 2 && b.startsWith("\"") && b.endsWith("\""))
+                b = b.substring(1, b.length() - 1);
+            return (b.isEmpty() || b.length() > MAX_BOUNDARY) ? null : b;
+        }
+        return null;
+    }
+
+    // Incremental multipart parser over a fixed window. The delimiter (CRLF "--" boundary) is found with
+    // Boyer-Moore-Horspool; part bytes that cannot be the start of a delimiter are flushed to disk as they arrive.
+    static final class MultipartSink implements HttpModels.BodySink {
+        private enum State {PREAMBLE, AFTER_DELIMITER, PART_HEADERS, PART_BODY, DONE}
+
+        private final Path root;
+        private final byte[] delimiter;
+        private final int[] skip = new int[256];
+        private final long maxFileBytes;
+        private final long maxTotalBytes;
+
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private final ByteBuffer windowBuf = ByteBuffer.wrap(window);
+        private int pos;
+        private int end;
+
+        private State state = State.PREAMBLE;
+        private long totalBytes;
+        private long partBytes;
+        private FileChannel file;
+        private Path tempPath;//part being written
+        private Path target;//where it goes once complete
+        private int errorStatus = 400;
+
+        final List<Path> saved = new ArrayList<>();
+        final List<Long> savedBytes = new ArrayList<>();
+
+        MultipartSink(Path root, String boundary, long maxFileBytes, long maxTotalBytes) {
+            this.root = root;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.maxFileBytes = maxFileBytes;
+            this.maxTotalBytes = maxTotalBytes;
+            int m = delimiter.length;
+            for (int i = 0; i < 256; i++)
+                skip[i] = m;
+            for (int i = 0; i < m - 1; i++)
+                skip[delimiter[i] & 0xff] = m - 1 - i;
+            // the first delimiter has no leading CRLF, pretend it had one
+            window[0] = '\r';
+            window[1] = '\n';
+            end = 2;
+        }
+
+        @Override
+        public boolean write(ByteBuffer chunk) {
+            totalBytes += chunk.remaining();
+            if (totalBytes > maxTotalBytes)
+                return fail(413);
+            try {
+                while (chunk.hasRemaining()) {
+                    if (pos > 0) {
+                        System.arraycopy(window, pos, window, 0, end - pos);
+                        end -= pos;
+                        pos = 0;
+                    }
+                    int n = Math.min(chunk.remaining(), window.length - end);
+                    chunk.get(window, end, n);
+                    end += n;
+                    if (!process())
+                        return false;
+                }
+                return true;
+            } catch (IOException e) {
+                return fail(500);
+            }
+        }
+
+        @Override
+        public boolean finish() {
+            if (state != State.DONE)
+                return fail(400);
+            return true;
+        }
+
+        @Override
+        public void abort() {
+            closeFile();
+            if (tempPath != null)
+                deleteQuietly(tempPath);
+            tempPath = null;
+            saved.clear();
+            savedBytes.clear();
+            state = State.DONE;
+        }
+
+        @Override
+        public int errorStatus() {
+            return errorStatus;
+        }
+
+        private boolean process() throws IOException {
+            while (true) {
+                switch (state) {
+                    case PREAMBLE -> {
+                        int at = indexOf(delimiter, pos, end);
+                        if (at < 0) {
+                            pos = Math.max(pos, end - delimiter.length + 1);
+                            return true;
+                        }
+                        pos = at + delimiter.length;
+                        state = State.AFTER_DELIMITER;
+                    }
+                    case AFTER_DELIMITER -> {
+                        if (end - pos < 2)
+                            return true;
+                        if (window[pos] == '-' && window[pos + 1] == '-') {
+                            // close delimiter, the epilogue is ignored
+                            state = State.DONE;
+                            pos = end;
+                            return true;
+                        }
+                        if (window[pos] != '\r' || window[pos + 1] != '\n')
+                            return fail(400);
+                        // keep the CRLF so an empty header section still ends in CRLFCRLF
+                        state = State.PART_HEADERS;
+                    }
+                    case PART_HEADERS -> {
+                        int at = indexOfHeadersEnd(pos, end);
+                        if (at < 0) {
+                            if (end - pos >= window.length)
+                                return fail(400);//header section larger than the window
+                            return true;
+                        }
+                        String headers = (at > pos) ? new String(window, pos + 2, at - pos - 2, StandardCharsets.ISO_8859_1) : "";
+                        pos = at + 4;
+                        if (!openPart(headers))
+                            return false;
+                        state = State.PART_BODY;
+                    }
+                    case PART_BODY -> {
+                        int at = indexOf(delimiter, pos, end);
+                        if (at < 0) {
+                            // anything before the last delimiter.length-1 bytes cannot start a delimiter
+                            int safe = end - delimiter.length + 1;
+                            if (safe > pos && !emit(pos, safe))
+                                return false;
+                            pos = Math.max(pos, safe);
+                            return true;
+                        }
+                        if (!emit(pos, at))
+                            return false;
+                        closePart();
+                        pos = at + delimiter.length;
+                        state = State.AFTER_DELIMITER;
+                    }
+                    case DONE -> {
+                        pos = end;
+                        return true;
+                    }
+                }
+            }
+        }
+
+        private int indexOf(byte[] pattern, int from, int to) {
+            int m = pattern.length;
+            int i = from;
+            while (i <= to - m) {
+                int j = m - 1;
+                while (j >= 0 && window[i + j] == pattern[j])
+                    j--;
+                if (j < 0)
+                    return i;
+                i += skip[window[i + m - 1] & 0xff];
+            }
+            return -1;
+        }
+
+        private int indexOfHeadersEnd(int from, int to) {
+            for (int i = from; i + 3 < to; i++)
+                if (window[i] == '\r' && window[i + 1] == '\n' && window[i + 2] == '\r' && window[i + 3] == '\n')
+                    return i;
+            return -1;
+        }
+
+        private boolean openPart(String headers) throws IOException {
+            partBytes = 0;
+            String filename = null;
+            for (String line : headers.split("\r\n")) {
+                int idx = line.indexOf(':');
+                if (idx <= 0 || !line.substring(0, idx).trim().equalsIgnoreCase("content-disposition"))
+                    continue;
+                filename = param(line.substring(idx + 1), "filename");
+            }
+            if (filename == null || filename.isEmpty())
+                return true;//plain form field, discarded
+            String name = safeName(filename);
+            if (name == null)
+                return fail(400);
+            Path target = root.resolve(name).normalize();
+            if (!target.startsWith(root) || target.equals(root))
+                return fail(403);
+            Files.createDirectories(root);
+            this.target = target;
+            tempPath = Files.createTempFile(root, ".upload-", ".part");
+            file = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+            return true;
+        }
+
+        private boolean emit(int from, int to) throws IOException {
+            partBytes += to - from;
+            if (file == null)
+                return true;
+            if (partBytes > maxFileBytes)
+                return fail(413);
+            windowBuf.limit(to).position(from);
+            while (windowBuf.hasRemaining())
+                file.write(windowBuf);
+            return true;
+        }
+
+        private void closePart() throws IOException {
+            if (file == null)
+                return;
+            file.close();
+            file = null;
+            Files.move(tempPath, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            tempPath = null;
+            saved.add(target);
+            savedBytes.add(partBytes);
+        }
+
+        private boolean fail(int status) {
+            errorStatus = status;
+            return false;
+        }
+
+        private void closeFile() {
+            if (file == null)
+                return;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            file = null;
+        }
+
+        // name="x"; filename="a b.txt"
+        private static String param(String value, String key) {
+            for (String p : value.split(";")) {
+                p = p.trim();
+                int eq = p.indexOf('=');
+                if (eq <= 0 || !p.substring(0, eq).trim().equalsIgnoreCase(key))
+                    continue;
+                String v = p.substring(eq + 1).trim();
+                if (v.length() >= 2 && v.startsWith("\"") && v.endsWith("\""))
+                    v = v.substring(1, v.length() - 1);
+                return v;
+            }
+            return null;
+        }
+
+        // browsers may send a full client path, keep only the last component
+        private static String safeName(String filename) {
+            String name = filename.substring(Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\')) + 1).trim();
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('\0') >= 0)
+                return null;
+            return name;
+        }
+
+        private static void deleteQuietly(Path p) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Free list of fixed-size direct buffers. Pools are static and may be shared by several reactors, so the free
+// list is guarded by the pool's lock; nothing is held for buffers out on loan.
+public class BufferPool {
+    // Buffers are recognised by their capacity: a writable direct buffer of a pool's size goes back to that pool,
+    // anything else (heap, read-only canned responses, odd sizes) is left to the GC. Two pools of one size share
+    // buffers, which are interchangeable anyway.
+    private static final Map<Integer, BufferPool> BY_SIZE = new ConcurrentHashMap<>();
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        BY_SIZE.putIfAbsent(bufferSize, this);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer b;
+        synchronized (free) {
+            b = free.pollFirst();
+        }
+        if (b == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        return b.clear();
+    }
+
+    public boolean owns(ByteBuffer b) {
+        return b.isDirect() && !b.isReadOnly() && b.capacity() == bufferSize;
+    }
+
+    // b must not be used afterwards, and must not be released twice
+    public void release(ByteBuffer b) {
+        if (!owns(b))
+            return;
+        b.clear();
+        synchronized (free) {
+            if (free.size() < maxPooled)
+                free.offerFirst(b);
+        }
+    }
+
+    // Hands b back to the pool of its size; buffers no pool could have lent are ignored.
+    public static void recycle(ByteBuffer b) {
+        BufferPool pool = BY_SIZE.get(b.capacity());
+        if (pool != null)
+            pool.release(b);
+    }
+}
@@ -1,19 +1,84 @@
 package utils;
 
+import java.nio.charset.StandardCharsets;
+
 public class PathUtil {
-    public static String normallizeUrlPath(String path){
-        if(path==null|| path.isEmpty())return "/";
-        if(path.charAt(0)!= '/') path="/"+path;
-        path=path.replace("/{2,}", "/");
-        path=path.replace("/./", "/");
+    // reactor-thread scratch, grown on demand; the result String is the only allocation per call
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1024]);
 
-        while(path.contains("/../")){
-            int idx=path.indexOf("/../");
-            if(idx==0){path=path.substring(3);continue;}
-            int prev=path.lastIndexOf('/',idx-1);
-            if(prev<0)break;
-            path=path.substring(0,prev)+path.substring(idx+3);
+    // Normalizes the path of a request target (up to end, the '?' or target length) in one pass:
+    // percent-decodes, collapses repeated slashes and resolves "." and ".." (RFC 3986 5.2.4; ".." never
+    // climbs above the root). An encoded slash counts as a separator, so decoding cannot smuggle in a
+    // segment. Absolute-form targets (http://host/path) are reduced to their path.
+    // Returns null when the target is malformed: bad percent escape, NUL, or no path at all.
+    public static String normalizePath(String target, int end) {
+        int i = 0;
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            i = target.indexOf('/', target.indexOf("//") + 2);
+            if (i < 0 || i >= end)
+                return "/";
+        }
+        if (i >= end || target.charAt(i) != '/')
+            return null;
+        byte[] out = SCRATCH.get();
+        if (out.length < end - i + 1) {
+            out = new byte[Integer.highestOneBit(end - i) << 1];
+            SCRATCH.set(out);
+        }
+        out[0] = '/';
+        int n = 1;
+        boolean ascii = true;
+        while (i < end) {
+            // skip separators, then copy one decoded segment
+            if (target.charAt(i) == '/') {
+                i++;
+                continue;
+            }
+            int segStart = n;
+            boolean sep = false;
+            while (i < end) {
+                int b = target.charAt(i);
+                if (b == '/') {
+                    sep = true;
+                    break;
+                }
+                i++;
+                if (b == '%') {
+                    if (i + 2 > end)
+                        return null;
+                    int hi = Character.digit(target.charAt(i), 16);
+                    int lo = Character.digit(target.charAt(i + 1), 16);
+                    if (hi < 0 || lo < 0)
+                        return null;
+                    i += 2;
+                    b = (hi << 4) | lo;
+                    if (b == '/') {
+                        sep = true;
+                        break;
+                    }
+                } else if (b > 0xff) {
+                    return null;
+                }
+                if (b == 0)
+                    return null;
+                if (b >= 0x80)
+                    ascii = false;
+                out[n++] = (byte) b;
+            }
+            int len = n - segStart;
+            if (len == 1 && out[segStart] == '.') {
+                n = segStart;
+            } else if (len == 2 && out[segStart] == '.' && out[segStart + 1] == '.') {
+                n = segStart;
+                if (n > 1) {
+                    n--;//the slash before ".."
+                    while (out[n - 1] != '/')
+                        n--;
+                }
+            } else if (sep || i < end) {
+                out[n++] = '/';
+            }
         }
-        return path;
+        return new String(out, 0, n, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
     }
 }
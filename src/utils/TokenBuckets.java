@@ -0,0 +1,105 @@
+package utils;
+
+// Token buckets keyed by a non-zero long, in a fixed-size open-addressing table of primitive arrays.
+// Lookups scan a bounded probe window, so every call is constant time and allocation free; when the
+// window is full the least recently used bucket in it is recycled, its remaining tokens passed on to the new
+// key. Not thread safe: reactor only.
+public class TokenBuckets {
+    private static final int PROBE = 8;
+    private static final int SWEEP_SLICE = 1024;//slots examined per sweep call
+
+    private final long[] keys;//0 = empty slot
+    private final long[] milliTokens;//tokens * 1000, so one ms at N per second refills N
+    private final long[] lastMs;
+    private final int mask;
+    private final long ratePerSecond;
+    private final long capacity;//burst * 1000
+    private final long idleMs;//a bucket untouched this long is full again and can be dropped
+    private int sweepCursor;
+    private volatile long evictions;//live buckets displaced by a new key; volatile so it can be read off the reactor
+
+    public TokenBuckets(int ratePerSecond, int burst, int tableSize) {
+        if (ratePerSecond <= 0 || burst <= 0)
+            throw new IllegalArgumentException("rate and burst must be >0");
+        int size = Integer.highestOneBit(Math.max(tableSize, PROBE) - 1) << 1;
+        this.keys = new long[size];
+        this.milliTokens = new long[size];
+        this.lastMs = new long[size];
+        this.mask = size - 1;
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = burst * 1000L;
+        this.idleMs = capacity / ratePerSecond + 1;
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    // takes one token for key, false when the bucket is empty
+    public boolean tryAcquire(long key, long nowMs) {
+        int base = (int) mix(key) & mask;
+        int slot = -1;
+        int victim = -1;
+        for (int i = 0; i < PROBE; i++) {
+            int idx = (base + i) & mask;
+            long k = keys[idx];
+            if (k == key) {
+                slot = idx;
+                break;
+            }
+            if (k == 0) {
+                if (victim < 0 || keys[victim] != 0)
+                    victim = idx;
+            } else if (victim < 0 || (keys[victim] != 0 && lastMs[idx] < lastMs[victim])) {
+                victim = idx;
+            }
+        }
+        if (slot < 0) {
+            slot = victim;
+            long start = capacity;
+            if (keys[slot] != 0) {
+                // the newcomer starts from what the displaced bucket holds by now, so clients cycling through
+                // more addresses than the table keeps do not get a fresh burst for each one
+                evictions++;
+                long idle = nowMs - lastMs[slot];
+                start = idle >= idleMs ? capacity : Math.min(capacity, milliTokens[slot] + Math.max(idle, 0) * ratePerSecond);
+            }
+            keys[slot] = key;
+            milliTokens[slot] = start;
+            lastMs[slot] = nowMs;
+        }
+        long elapsed = nowMs - lastMs[slot];
+        long tokens = milliTokens[slot];
+        if (elapsed > 0) {
+            tokens = elapsed >= idleMs ? capacity : Math.min(capacity, tokens + elapsed * ratePerSecond);
+            lastMs[slot] = nowMs;
+        }
+        if (tokens < 1000) {
+            milliTokens[slot] = tokens;
+            return false;
+        }
+        milliTokens[slot] = tokens - 1000;
+        return true;
+    }
+
+    // Drops buckets that refilled completely; walks one slice of the table per call.
+    public void sweep(long nowMs) {
+        int n = Math.min(SWEEP_SLICE, keys.length);
+        for (int i = 0; i < n; i++) {
+            int idx = sweepCursor;
+            sweepCursor = (sweepCursor + 1) & mask;
+            if (keys[idx] != 0 && nowMs - lastMs[idx] >= idleMs)
+                keys[idx] = 0;
+        }
+    }
+
+    // murmur3 finalizer, spreads sequential addresses over the table
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
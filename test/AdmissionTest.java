@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// Connection admission on a live server: global and per-port limits answered with the canned 503 and a close,
+// the AdmissionStats counters, and accepts drained at most acceptBatch per wakeup.
+public class AdmissionTest {
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("admission");
+        try {
+            acceptBatch(dir);
+            limits(dir);
+        } finally {
+            Files.deleteIfExists(dir.resolve("config.json"));
+            Files.deleteIfExists(dir.resolve("accept.jfr"));
+            Files.deleteIfExists(dir);
+        }
+        System.out.println("AdmissionTest: " + checks + " checks passed");
+    }
+
+    // ten connections already waiting in the backlog when the loop starts: 4, 4 and 2 per wakeup
+    static void acceptBatch(Path dir) throws Exception {
+        int port = freePort();
+        ConfigLoader.Config cfg = config(dir, "\"ports\": [" + port + "], \"acceptBatch\": 4");
+        Server server = new Server(cfg, new Router(cfg));
+        server.listen();
+        List<Socket> clients = new ArrayList<>();
+        try (Recording rec = new Recording()) {
+            rec.enable("localserver.Accept");
+            rec.start();
+            for (int i = 0; i < 10; i++)
+                clients.add(new Socket("127.0.0.1", port));
+            start(server);
+            waitFor(() -> server.admissionStats().accepted() == 10, "all ten accepted");
+            Thread.sleep(200);//the last batch's event commits after its accept
+            rec.stop();
+            Path file = dir.resolve("accept.jfr");
+            rec.dump(file);
+            int total = 0, max = 0, batches = 0;
+            for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                if (!e.getEventType().getName().equals("localserver.Accept") || e.getInt("port") != port
+                        || e.getInt("accepted") + e.getInt("shed") == 0)
+                    continue;
+                int n = e.getInt("accepted") + e.getInt("shed");
+                if (batches++ == 0)
+                    check(n == 4, "first wakeup takes a full batch, took " + n);
+                total += n;
+                max = Math.max(max, n);
+            }
+            check(max == 4, "no wakeup accepts more than acceptBatch, max " + max);
+            check(total == 10 && batches == 3, "ten accepts over three wakeups, " + total + " over " + batches);
+        } finally {
+            for (Socket s : clients)
+                s.close();
+        }
+    }
+
+    static void limits(Path dir) throws Exception {
+        int portA = freePort(), portB = freePort();
+        ConfigLoader.Config cfg = config(dir, "\"ports\": [" + portA + ", " + portB + "], \"maxConnections\": 4,"
+                + " \"maxConnectionsPerPort\": 3, \"retryAfterSeconds\": 7");
+        Server server = new Server(cfg, new Router(cfg));
+        server.listen();
+        start(server);
+        List<Socket> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++)
+                clients.add(new Socket("127.0.0.1", portA));
+            waitFor(() -> server.admissionStats().openConnections() == 3, "three open on the first port");
+            String shed = readAll(portA);
+            check(shed.startsWith("HTTP/1.1 503 Service Unavailable\r\n"), "per-port limit answers 503: " + shed);
+            check(shed.contains("\r\nRetry-After: 7\r\n") && shed.contains("\r\nConnection: close\r\n"), "Retry-After and close");
+            check(server.admissionStats().shedPortLimit() == 1, "counted as a per-port shed");
+
+            clients.add(new Socket("127.0.0.1", portB));
+            waitFor(() -> server.admissionStats().openConnections() == 4, "the other port still accepts");
+            check(readAll(portB).startsWith("HTTP/1.1 503 "), "global limit answers 503");
+            Server.AdmissionStats stats = server.admissionStats();
+            check(stats.shedGlobalLimit() == 1 && stats.shedPortLimit() == 1, "counted as a global shed");
+            check(stats.accepted() == 4 && stats.openConnections() == 4, "four accepted, four open");
+            check(stats.shedLatency() == 0, "no latency shedding configured");
+
+            // a closed connection frees its slot, and what gets in is served normally
+            clients.remove(0).close();
+            waitFor(() -> server.admissionStats().openConnections() == 3, "closed connection leaves the count");
+            try (Socket s = new Socket("127.0.0.1", portA)) {
+                s.setSoTimeout(5000);
+                s.getOutputStream().write("GET / HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                String response = new String(s.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                check(response.startsWith("HTTP/1.1 ") && !response.startsWith("HTTP/1.1 503"), "admitted and served: " + response);
+            }
+            check(server.admissionStats().accepted() == 5, "accepted counts every admitted connection");
+        } finally {
+            for (Socket s : clients)
+                s.close();
+        }
+    }
+
+    private static ConfigLoader.Config config(Path dir, String fields) throws Exception {
+        Path file = dir.resolve("config.json");
+        Files.writeString(file, "{\"host\": \"127.0.0.1\", " + fields + ", \"routes\": [{\"pathPrefix\": \"/\", \"root\": \""
+                + dir + "\", \"methods\": [\"GET\"]}]}");
+        return ConfigLoader.load(file);
+    }
+
+    private static void start(Server server) {
+        Thread t = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "admission-test-server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static String readAll(int port) throws IOException {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            InputStream in = s.getInputStream();
+            return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition, String what) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (condition.getAsBoolean())
+                return;
+            Thread.sleep(50);
+        }
+        throw new AssertionError("timed out waiting: " + what);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+
+// Hpack against the RFC 7541 appendix C examples, plus encoder/decoder round trips and malformed input.
+public class HpackTest {
+    private static int checks;
+
+    public static void main(String[] args) {
+        integers();
+        rfcRequestsWithoutHuffman();
+        rfcRequestWithHuffman();
+        roundTripUsesDynamicTable();
+        tableSizeUpdate();
+        malformedInput();
+        System.out.println("HpackTest: " + checks + " checks passed");
+    }
+
+    // C.1
+    static void integers() {
+        check(hex(out -> Hpack.writeInt(out, 0, 5, 10)).equals("0a"), "10 in a 5-bit prefix");
+        check(hex(out -> Hpack.writeInt(out, 0, 5, 1337)).equals("1f9a0a"), "1337 in a 5-bit prefix");
+        check(hex(out -> Hpack.writeInt(out, 0, 8, 42)).equals("2a"), "42 in an 8-bit prefix");
+        check(Hpack.readInt(bytes("1f9a0a"), 5) == 1337, "read 1337");
+        check(Hpack.readInt(bytes("3f00"), 6) == 63, "read a value equal to the prefix mask");
+    }
+
+    // C.3: three requests on one connection, the dynamic table carries over
+    static void rfcRequestsWithoutHuffman() {
+        Hpack.Decoder d = new Hpack.Decoder(4096, 1 << 16);
+        check(decode(d, "828684410f7777772e6578616d706c652e636f6d").equals(List.of(
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com")), "C.3.1");
+        check(decode(d, "828684be58086e6f2d6361636865").equals(List.of(
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache")), "C.3.2");
+        check(decode(d, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565").equals(List.of(
+                ":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                "custom-key: custom-value")), "C.3.3");
+    }
+
+    // C.4.1
+    static void rfcRequestWithHuffman() {
+        Hpack.Decoder d = new Hpack.Decoder(4096, 1 << 16);
+        check(decode(d, "828684418cf1e3c2e5f23a6ba0ab90f4ff").equals(List.of(
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com")), "C.4.1");
+    }
+
+    static void roundTripUsesDynamicTable() {
+        Hpack.Encoder e = new Hpack.Encoder();
+        Hpack.Decoder d = new Hpack.Decoder(4096, 1 << 16);
+        String[][] headers = {{":status", "200"}, {"content-type", "text/html; charset=utf-8"},
+                {"server", "localserver"}, {"set-cookie", "id=1"}, {"content-length", "123"}};
+        ByteArrayOutputStream first = block(e, headers);
+        ByteArrayOutputStream second = block(e, headers);
+        List<String> expected = new ArrayList<>();
+        for (String[] h : headers)
+            expected.add(h[0] + ": " + h[1]);
+        check(decode(d, first).equals(expected), "first block decodes");
+        check(decode(d, second).equals(expected), "second block decodes");
+        check(second.size() < first.size(), "repeated fields come from the dynamic table");
+        // set-cookie goes out never indexed: 0001 prefix, static name index 55 = 15 + 40
+        check(HexFormat.of().formatHex(first.toByteArray()).contains("1f28"), "set-cookie never indexed");
+    }
+
+    static void tableSizeUpdate() {
+        Hpack.Encoder e = new Hpack.Encoder();
+        Hpack.Decoder d = new Hpack.Decoder(4096, 1 << 16);
+        String[][] headers = {{"x-a", "1"}, {"x-b", "2"}};
+        decode(d, block(e, headers));
+        e.setMaxTableSize(0);
+        ByteArrayOutputStream out = block(e, headers);
+        check((out.toByteArray()[0] & 0xe0) == 0x20, "block starts with a size update");
+        check(decode(d, out).equals(List.of("x-a: 1", "x-b: 2")), "literals after the table was emptied");
+        boolean rejected = false;
+        try {
+            decode(new Hpack.Decoder(100, 1 << 16), "3f8001");// size update to 159 > 100
+        } catch (IllegalArgumentException ex) {
+            rejected = true;
+        }
+        check(rejected, "size update above the advertised maximum");
+    }
+
+    static void malformedInput() {
+        String[] bad = {
+                "80",// index 0
+                "be",// dynamic index 62 on an empty table
+                "4005",// literal name string claims 5 bytes, none follow
+                "1f",// integer continuation missing
+                "4081ff0161",// huffman name is all padding: EOS/bad padding
+                "828620",// size update after a header
+        };
+        for (String h : bad) {
+            boolean rejected = false;
+            try {
+                decode(new Hpack.Decoder(4096, 1 << 16), h);
+            } catch (IllegalArgumentException ex) {
+                rejected = true;
+            }
+            check(rejected, "rejects " + h);
+        }
+        boolean tooLarge = false;
+        try {
+            decode(new Hpack.Decoder(4096, 40), "828684410f7777772e6578616d706c652e636f6d");
+        } catch (IllegalArgumentException ex) {
+            tooLarge = true;
+        }
+        check(tooLarge, "header list size limit");
+    }
+
+    private static ByteArrayOutputStream block(Hpack.Encoder e, String[][] headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        e.beginBlock(out);
+        for (String[] h : headers)
+            e.encode(out, h[0], h[1]);
+        return out;
+    }
+
+    private static List<String> decode(Hpack.Decoder d, String hex) {
+        List<String> out = new ArrayList<>();
+        d.decode(bytes(hex), (n, v) -> out.add(n + ": " + v));
+        return out;
+    }
+
+    private static List<String> decode(Hpack.Decoder d, ByteArrayOutputStream block) {
+        return decode(d, HexFormat.of().formatHex(block.toByteArray()));
+    }
+
+    private static ByteBuffer bytes(String hex) {
+        return ByteBuffer.wrap(HexFormat.of().parseHex(hex));
+    }
+
+    private static String hex(java.util.function.Consumer<ByteArrayOutputStream> write) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write.accept(out);
+        return HexFormat.of().formatHex(out.toByteArray());
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
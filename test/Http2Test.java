@@ -0,0 +1,170 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Http2Connection driven frame by frame, without a socket: what a flood of control frames costs, and the
+// SETTINGS values that must end the connection.
+public class Http2Test {
+    private static final int HEADERS = 0x1, SETTINGS = 0x4, PING = 0x6, GOAWAY = 0x7, WINDOW_UPDATE = 0x8;
+    private static final int ACK = 0x1, END_STREAM = 0x1, END_HEADERS = 0x4;
+    private static int checks;
+
+    public static void main(String[] args) {
+        pingFloodIsBounded();
+        controlFramesAreSmall();
+        badHeaderTableSize();
+        initialWindowOverflow();
+        System.out.println("Http2Test: " + checks + " checks passed");
+    }
+
+    // a client that sends PINGs but never reads: the connection asks the reactor to stop reading well before
+    // the acks pile up, and they take their own size, not a pooled frame buffer each
+    static void pingFloodIsBounded() {
+        Peer peer = new Peer(r -> Response.text(200, "OK", "text/plain", "x"));
+        peer.input(preface());
+        peer.input(frame(SETTINGS, 0, 0, new byte[0]));
+        int sent = 0;
+        while (!peer.conn.outputBacklogged() && sent < 100_000) {
+            ByteArrayOutputStream burst = new ByteArrayOutputStream();
+            for (int i = 0; i < 1000; i++)
+                burst.writeBytes(frame(PING, 0, 0, new byte[8]));
+            peer.input(burst.toByteArray());
+            sent += 1000;
+        }
+        check(peer.conn.outputBacklogged(), "backlogged after " + sent + " pings");
+        long queued = peer.queuedBytes();
+        check(queued < 600 * 1024, "queued output stays near the pause mark: " + queued);
+        check(sent < 40_000, "the pause comes early: " + sent + " pings");
+        check(peer.out.stream().noneMatch(ByteBuffer::isDirect), "no pooled buffers for control frames");
+
+        // the peer reads: written frames are credited back and reading resumes
+        for (ByteBuffer b : peer.out) {
+            b.position(b.limit());
+            peer.conn.onFrameWritten(b);
+        }
+        peer.out.clear();
+        check(!peer.conn.outputBacklogged(), "reading resumes once the output is written");
+    }
+
+    static void controlFramesAreSmall() {
+        Peer peer = new Peer(r -> Response.text(200, "OK", "text/plain", "x"));
+        peer.input(preface());
+        peer.input(frame(SETTINGS, 0, 0, new byte[0]));
+        peer.input(frame(PING, 0, 0, new byte[8]));
+        ByteBuffer ack = peer.last();
+        check(ack.capacity() == 17 && ack.get(3) == PING && ack.get(4) == ACK, "PING ack is a 17 byte buffer");
+        peer.input(frame(HEADERS, END_HEADERS | END_STREAM, 1, requestBlock()));
+        boolean headers = false, data = false;
+        for (ByteBuffer b : peer.out) {
+            if (b.get(3) == HEADERS)
+                headers = !b.isDirect() && b.capacity() == b.limit();
+            if (b.get(3) == 0)
+                data = b.isDirect() && b.capacity() == Http2Connection.MAX_FRAME_SIZE + 9;
+        }
+        check(headers, "HEADERS sized to the header block");
+        check(data, "DATA still uses the frame pool");
+    }
+
+    // the value is unsigned on the wire; above 2^31-1 it is refused rather than handed to the encoder
+    static void badHeaderTableSize() {
+        Peer peer = new Peer(r -> Response.text(200, "OK", "text/plain", "x"));
+        peer.input(preface());
+        peer.input(frame(SETTINGS, 0, 0, setting(0x1, 0x80000000)));
+        check(peer.goAwayCode() == 0x1, "GOAWAY PROTOCOL_ERROR");
+        check(peer.conn.isClosed(), "connection closed");
+
+        Peer fine = new Peer(r -> Response.text(200, "OK", "text/plain", "x"));
+        fine.input(preface());
+        fine.input(frame(SETTINGS, 0, 0, setting(0x1, 0x7fffffff)));
+        check(fine.goAwayCode() == -1 && fine.last().get(3) == SETTINGS && fine.last().get(4) == ACK, "large but valid size acked");
+    }
+
+    // a stream whose window was opened to the maximum; raising the initial window by one overflows it
+    static void initialWindowOverflow() {
+        Response.Pending never = new Response.Pending();
+        Peer peer = new Peer(r -> Response.pending(never));
+        peer.input(preface());
+        peer.input(frame(SETTINGS, 0, 0, new byte[0]));
+        peer.input(frame(HEADERS, END_HEADERS | END_STREAM, 1, requestBlock()));
+        peer.input(frame(WINDOW_UPDATE, 0, 1, intBytes(0x7fffffff - 65_535)));
+        check(peer.goAwayCode() == -1, "window at 2^31-1 is fine");
+        peer.input(frame(SETTINGS, 0, 0, setting(0x4, 65_536)));
+        check(peer.goAwayCode() == 0x3, "GOAWAY FLOW_CONTROL_ERROR, got " + peer.goAwayCode());
+    }
+
+    // ---- helpers
+
+    private static final class Peer {
+        final List<ByteBuffer> out = new ArrayList<>();
+        final Http2Connection conn;
+
+        Peer(java.util.function.Function<HttpModels.Request, Response> handler) {
+            ConfigLoader.Config cfg = new ConfigLoader.Config();
+            cfg.clientBodyLimitBytes = 1024 * 1024;
+            cfg.errorPagesDir = "err";
+            conn = new Http2Connection(handler, out::add, () -> {}, cfg);
+        }
+
+        void input(byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            conn.onInput(in);
+            check(!in.hasRemaining(), "every frame consumed");
+        }
+
+        ByteBuffer last() {
+            return out.get(out.size() - 1);
+        }
+
+        long queuedBytes() {
+            long n = 0;
+            for (ByteBuffer b : out)
+                n += b.remaining();
+            return n;
+        }
+
+        int goAwayCode() {
+            for (ByteBuffer b : out)
+                if (b.get(3) == GOAWAY)
+                    return b.getInt(13);
+            return -1;
+        }
+    }
+
+    private static byte[] preface() {
+        return Http2Connection.PREFACE.clone();
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer b = ByteBuffer.allocate(9 + payload.length);
+        b.put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length);
+        b.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+        return b.array();
+    }
+
+    private static byte[] setting(int id, int value) {
+        return ByteBuffer.allocate(6).putShort((short) id).putInt(value).array();
+    }
+
+    private static byte[] intBytes(int v) {
+        return ByteBuffer.allocate(4).putInt(v).array();
+    }
+
+    // GET / over http
+    private static byte[] requestBlock() {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        encoder.beginBlock(block);
+        encoder.encode(block, ":method", "GET");
+        encoder.encode(block, ":scheme", "http");
+        encoder.encode(block, ":path", "/");
+        encoder.encode(block, ":authority", "localhost");
+        return block.toByteArray();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
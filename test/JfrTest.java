@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// The shipped localserver.jfc parses and enables the server's events, and one request recorded with it yields
+// the parser, route and write events with their fields filled in.
+public class JfrTest {
+    private static final String[] EVENTS = {"SelectorWakeup", "SelectorIteration", "Accept", "ParserStage", "RequestParsed",
+            "RouteHandle", "WriteFlush", "TimeoutClose"};
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        Configuration settings = settingsFile();
+        Path dir = Files.createTempDirectory("jfr");
+        try {
+            oneRequest(dir, settings);
+        } finally {
+            delete(dir);
+        }
+        System.out.println("JfrTest: " + checks + " checks passed");
+    }
+
+    static Configuration settingsFile() throws Exception {
+        Configuration c = Configuration.create(Path.of("localserver.jfc"));
+        check("LocalServer".equals(c.getLabel()) && "LocalServer".equals(c.getProvider()), "label and provider: " + c.getLabel());
+        Map<String, String> s = c.getSettings();
+        for (String name : EVENTS)
+            check("true".equals(s.get("localserver." + name + "#enabled")), name + " enabled");
+        check("0 ms".equals(s.get("localserver.RouteHandle#threshold")), "every RouteHandle kept");
+        check("true".equals(s.get("jdk.GarbageCollection#enabled")), "GC pauses on the same timeline");
+        return c;
+    }
+
+    static void oneRequest(Path dir, Configuration settings) throws Exception {
+        Path www = Files.createDirectories(dir.resolve("www"));
+        Files.writeString(www.resolve("hello.txt"), "hello");
+        int port = freePort();
+        Path config = dir.resolve("config.json");
+        Files.writeString(config, "{\"host\": \"127.0.0.1\", \"ports\": [" + port + "], \"routes\": [{\"pathPrefix\": \"/\","
+                + " \"root\": \"" + www + "\", \"methods\": [\"GET\"]}]}");
+        ConfigLoader.Config cfg = ConfigLoader.load(config);
+        Server server = new Server(cfg, new Router(cfg));
+        server.listen();
+        Thread t = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "jfr-test-server");
+        t.setDaemon(true);
+        t.start();
+
+        Path file = dir.resolve("request.jfr");
+        byte[] reply;
+        try (Recording rec = new Recording(settings)) {
+            rec.start();
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.setSoTimeout(5000);
+                s.getOutputStream().write("GET /hello.txt HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                reply = s.getInputStream().readAllBytes();
+            }
+            Thread.sleep(200);//the write event commits after the bytes are out
+            rec.stop();
+            rec.dump(file);
+        }
+        check(new String(reply, StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 200 "), "served");
+
+        List<RecordedEvent> route = new ArrayList<>(), parsed = new ArrayList<>(), stages = new ArrayList<>(),
+                writes = new ArrayList<>();
+        for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+            switch (e.getEventType().getName()) {
+                case "localserver.RouteHandle" -> route.add(e);
+                case "localserver.RequestParsed" -> parsed.add(e);
+                case "localserver.ParserStage" -> stages.add(e);
+                case "localserver.WriteFlush" -> writes.add(e);
+                default -> {}
+            }
+        }
+
+        check(route.size() == 1, "one RouteHandle: " + route.size());
+        RecordedEvent r = route.get(0);
+        check("/".equals(r.getString("route")) && "GET".equals(r.getString("method")) && "/hello.txt".equals(r.getString("path")),
+                "route, method and path: " + r);
+        check(r.getInt("status") == 200, "status");
+        check(!r.getDuration().isNegative() && r.getThread().getJavaName().equals("jfr-test-server"), "timed on the reactor thread");
+
+        check(parsed.size() == 1, "one RequestParsed: " + parsed.size());
+        RecordedEvent p = parsed.get(0);
+        check("GET".equals(p.getString("method")) && "/hello.txt".equals(p.getString("path")) && p.getInt("errorStatus") == 0,
+                "parsed request: " + p);
+        check(p.getLong("parseTime") > 0 && !p.getBoolean("streamed"), "parse time, buffered body");
+
+        List<String> transitions = new ArrayList<>();
+        for (RecordedEvent e : stages) {
+            transitions.add(e.getString("from") + ">" + e.getString("to"));
+            check(e.getLong("timeInStage") >= 0, "time in stage");
+        }
+        check(transitions.equals(List.of("START>HEADERS", "HEADERS>START")), "stages of a GET: " + transitions);
+
+        long bytes = 0;
+        boolean drained = false;
+        for (RecordedEvent e : writes) {
+            bytes += e.getLong("bytes");
+            drained |= e.getBoolean("drained");
+            check(e.getInt("writes") >= 1 && !e.getBoolean("tls"), "socket writes, plain text");
+        }
+        check(bytes == reply.length, "written bytes add up to the reply: " + bytes + " of " + reply.length);
+        check(drained, "the last write drains the queue");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toArray(Path[]::new))
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// UploadHandler's multipart parser fed the same bodies in chunks of every size, and its failure paths, which
+// must never leave a partial file behind or touch an existing one.
+public class MultipartTest {
+    private static final String BOUNDARY = "----b0undary";
+    private static int checks;
+
+    public static void main(String[] args) throws IOException {
+        boundaryParameter();
+        chunkedAtEverySize();
+        clientPathsAreStripped();
+        limitsAndAborts();
+        malformedBodies();
+        System.out.println("MultipartTest: " + checks + " checks passed");
+    }
+
+    static void boundaryParameter() {
+        check(BOUNDARY.equals(UploadHandler.boundary("multipart/form-data; boundary=" + BOUNDARY)), "plain boundary");
+        check("a b".equals(UploadHandler.boundary("Multipart/Form-Data; charset=utf-8; boundary=\"a b\"")), "quoted boundary");
+        check(UploadHandler.boundary("text/plain; boundary=x") == null, "not multipart");
+        check(UploadHandler.boundary("multipart/form-data") == null, "no boundary");
+        check(UploadHandler.boundary("multipart/form-data; boundary=" + "x".repeat(71)) == null, "boundary over 70 chars");
+    }
+
+    static void chunkedAtEverySize() throws IOException {
+        byte[] first = new byte[100_000];
+        for (int i = 0; i < first.length; i++)
+            first[i] = (byte) (i * 31);
+        // near misses of the delimiter inside the content
+        byte[] second = ("x\r\n--" + BOUNDARY.substring(0, 8) + "\r\n-\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new Body().field("name", "value").file("a.bin", first).file("b.txt", second).preamble("ignored").end();
+        for (int size : new int[]{1, 2, 3, 7, 13, 64, 1000, 65_536, body.length}) {
+            Path root = Files.createTempDirectory("multipart");
+            try {
+                UploadHandler.MultipartSink sink = sink(root, Long.MAX_VALUE, Long.MAX_VALUE);
+                boolean written = true;
+                for (int off = 0; off < body.length && written; off += size)
+                    written = sink.write(ByteBuffer.wrap(body, off, Math.min(size, body.length - off)));
+                check(written, "write, chunk " + size);
+                check(sink.finish(), "finish, chunk " + size);
+                check(sink.saved.equals(List.of(root.resolve("a.bin"), root.resolve("b.txt"))), "saved names, chunk " + size);
+                check(sink.savedBytes.equals(List.of((long) first.length, (long) second.length)), "sizes, chunk " + size);
+                check(Arrays.equals(Files.readAllBytes(root.resolve("a.bin")), first), "a.bin content, chunk " + size);
+                check(Arrays.equals(Files.readAllBytes(root.resolve("b.txt")), second), "b.txt content, chunk " + size);
+                check(list(root).length == 2, "no temp files left, chunk " + size);
+            } finally {
+                delete(root);
+            }
+        }
+    }
+
+    static void clientPathsAreStripped() throws IOException {
+        Path root = Files.createTempDirectory("multipart");
+        try {
+            byte[] body = new Body().file("C:\\Users\\me\\win.txt", "w".getBytes()).file("../../etc/passwd", "p".getBytes()).end();
+            UploadHandler.MultipartSink sink = sink(root, 1000, 1000);
+            check(sink.write(ByteBuffer.wrap(body)) && sink.finish(), "upload with client paths");
+            check(Files.exists(root.resolve("win.txt")) && Files.exists(root.resolve("passwd")), "last path component kept");
+            check(list(root).length == 2, "nothing written outside the names");
+            sink = sink(root, 1000, 1000);
+            check(!sink.write(ByteBuffer.wrap(new Body().file("..", "x".getBytes()).end())) && sink.errorStatus() == 400, "filename ..");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static void limitsAndAborts() throws IOException {
+        Path root = Files.createTempDirectory("multipart");
+        try {
+            Path existing = root.resolve("keep.txt");
+            Files.writeString(existing, "original");
+
+            UploadHandler.MultipartSink sink = sink(root, 10, 1000);
+            check(!sink.write(ByteBuffer.wrap(new Body().file("keep.txt", new byte[11]).end())), "file over maxFileBytes");
+            check(sink.errorStatus() == 413, "413 for a large file");
+            sink.abort();
+            check(Files.readString(existing).equals("original") && list(root).length == 1, "existing file untouched after 413");
+
+            sink = sink(root, 1000, 50);
+            check(!sink.write(ByteBuffer.wrap(new Body().file("other.txt", new byte[60]).end())) && sink.errorStatus() == 413,
+                    "body over maxTotalBytes");
+
+            // connection dropped half way through a part replacing keep.txt
+            byte[] body = new Body().file("keep.txt", new byte[500]).end();
+            sink = sink(root, 1000, 1000);
+            check(sink.write(ByteBuffer.wrap(body, 0, 300)), "first half");
+            check(list(root).length == 2, "part written to a temp file");
+            check(!sink.finish() && sink.errorStatus() == 400, "truncated body fails finish");
+            sink.abort();
+            check(Files.readString(existing).equals("original"), "existing file untouched after abort");
+            check(list(root).length == 1, "temp file removed by abort");
+
+            // a complete part replaces the old file
+            sink = sink(root, 1000, 1000);
+            check(sink.write(ByteBuffer.wrap(new Body().file("keep.txt", "new".getBytes()).end())) && sink.finish(), "replace");
+            check(Files.readString(existing).equals("new"), "replaced on completion");
+        } finally {
+            delete(root);
+        }
+    }
+
+    static void malformedBodies() throws IOException {
+        Path root = Files.createTempDirectory("multipart");
+        try {
+            UploadHandler.MultipartSink sink = sink(root, 1000, 1000);
+            check(!sink.write(ByteBuffer.wrap(("--" + BOUNDARY + "xx").getBytes(StandardCharsets.ISO_8859_1))), "junk after delimiter");
+            check(sink.errorStatus() == 400, "400 for junk after delimiter");
+            sink = sink(root, 1000, 1000);
+            check(sink.write(ByteBuffer.wrap("no delimiter at all".getBytes())) && !sink.finish(), "body without parts");
+            check(list(root).length == 0, "nothing written");
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static UploadHandler.MultipartSink sink(Path root, long maxFile, long maxTotal) {
+        return new UploadHandler.MultipartSink(root, BOUNDARY, maxFile, maxTotal);
+    }
+
+    private static final class Body {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private String preamble = "";
+
+        Body preamble(String text) {
+            preamble = text + "\r\n";
+            return this;
+        }
+
+        Body field(String name, String value) {
+            return part("form-data; name=\"" + name + "\"", value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Body file(String filename, byte[] content) {
+            return part("form-data; name=\"f\"; filename=\"" + filename + "\"", content);
+        }
+
+        private Body part(String disposition, byte[] content) {
+            out.writeBytes(("--" + BOUNDARY + "\r\nContent-Disposition: " + disposition + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.writeBytes(content);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            return this;
+        }
+
+        byte[] end() {
+            out.writeBytes(("--" + BOUNDARY + "--\r\nepilogue").getBytes(StandardCharsets.ISO_8859_1));
+            byte[] parts = out.toByteArray();
+            byte[] pre = preamble.getBytes(StandardCharsets.ISO_8859_1);
+            byte[] all = Arrays.copyOf(pre, pre.length + parts.length);
+            System.arraycopy(parts, 0, all, pre.length, parts.length);
+            return all;
+        }
+    }
+
+    private static Path[] list(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.toArray(Path[]::new);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toArray(Path[]::new))
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
@@ -0,0 +1,532 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+// The reverse proxy on a live server against loopback upstreams: connection reuse, both balancers, the resend
+// of idempotent requests on a stale pooled connection, 502/504 on failures and timeouts, streamed bodies both
+// ways, upstream header handling, and a slow upstream outlasting the client idle timeout.
+public class ProxyTest {
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("proxy");
+        List<Upstream> upstreams = new ArrayList<>();
+        try {
+            Upstream a = add(upstreams, new Upstream("a", named("a")));
+            Upstream b = add(upstreams, new Upstream("b", named("b")));
+            CountDownLatch hold = new CountDownLatch(1);
+            Upstream c = add(upstreams, new Upstream("c", (req, out, nth) -> {
+                if (req.target.endsWith("/hold"))
+                    hold.await(5, TimeUnit.SECONDS);
+                return named("c").answer(req, out, nth);
+            }));
+            Upstream d = add(upstreams, new Upstream("d", named("d")));
+            // answers the first request on a connection, closes on the next one without a word
+            Upstream stale = add(upstreams, new Upstream("stale", (req, out, nth) -> nth == 0 && named("stale").answer(req, out, nth)));
+            Upstream silent = add(upstreams, new Upstream("silent", (req, out, nth) -> {
+                Thread.sleep(3000);
+                return false;
+            }));
+            Upstream slow = add(upstreams, new Upstream("slow", (req, out, nth) -> {
+                Thread.sleep(16_000);
+                return named("slow").answer(req, out, nth);
+            }));
+            Upstream echo = add(upstreams, new Upstream("echo", ProxyTest::echo));
+            Upstream headers = add(upstreams, new Upstream("headers", ProxyTest::headers));
+            // a listener that never accepts: once its backlog is full further connects hang
+            ServerSocket blackhole = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            List<Socket> filler = fill(blackhole);
+            int closedPort = freePort();
+
+            int port = freePort();
+            Path config = dir.resolve("config.json");
+            Files.writeString(config, "{\"host\": \"127.0.0.1\", \"ports\": [" + port + "], \"clientBodyLimitBytes\": 8388608,"
+                    + " \"errorPagesDir\": \"" + dir.resolve("errors") + "\", \"routes\": ["
+                    + route("/rr", "round-robin", 3000, 3000, a, b)
+                    + ", " + route("/lc", "least-conn", 3000, 3000, c, d)
+                    + ", " + route("/stale", "round-robin", 3000, 3000, stale)
+                    + ", " + route("/down", "round-robin", 3000, 3000, "127.0.0.1:" + closedPort)
+                    + ", " + route("/silent", "round-robin", 3000, 300, silent)
+                    + ", " + route("/blackhole", "round-robin", 300, 3000, "127.0.0.1:" + blackhole.getLocalPort())
+                    + ", " + route("/slow", "round-robin", 3000, 30_000, slow)
+                    + ", " + route("/echo", "round-robin", 3000, 3000, echo)
+                    + ", " + route("/headers", "round-robin", 3000, 3000, headers) + "]}");
+            ConfigLoader.Config cfg = ConfigLoader.load(config);
+            Server server = new Server(cfg, new Router(cfg));
+            server.listen();
+            Thread t = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "proxy-test-server");
+            t.setDaemon(true);
+            t.start();
+
+            // started first, it runs alongside the rest
+            String[] slowResult = new String[1];
+            Thread slowClient = new Thread(() -> slowResult[0] = slowUpstream(port), "proxy-test-slow-client");
+            slowClient.start();
+
+            keepAliveRoundRobin(port, a, b);
+            leastConn(port, c, d, hold);
+            staleRetry(port, stale);
+            failures(port);
+            streamedBodies(port, echo);
+            upstreamHeaders(port);
+
+            slowClient.join(30_000);
+            check("HTTP/1.1 200 OK slow".equals(slowResult[0]), "a slow upstream outlasts the client idle timeout: " + slowResult[0]);
+            for (Socket s : filler)
+                s.close();
+            blackhole.close();
+        } finally {
+            for (Upstream u : upstreams)
+                u.close();
+            delete(dir);
+        }
+        System.out.println("ProxyTest: " + checks + " checks passed");
+    }
+
+    // four requests on one client connection alternate between the upstreams, each over one kept-alive socket
+    static void keepAliveRoundRobin(int port, Upstream a, Upstream b) throws IOException {
+        try (Client client = new Client(port)) {
+            List<String> served = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Reply r = client.get("/rr/" + i);
+                check(r.status == 200, "round-robin request " + i + ": " + r.head);
+                served.add(r.text());
+            }
+            check(served.equals(List.of("a", "b", "a", "b")), "round-robin order: " + served);
+        }
+        check(a.connections.get() == 1 && b.connections.get() == 1,
+                "upstream connections reused: " + a.connections + ", " + b.connections);
+        check(a.requests.size() == 2 && b.requests.size() == 2, "two requests each");
+        check(a.requests.get(0).headers.get("x-forwarded-for").equals("127.0.0.1"), "X-Forwarded-For added");
+        check(!a.requests.get(0).headers.getOrDefault("connection", "").contains("close"), "kept alive upstream");
+    }
+
+    // while c holds a request, least-conn sends everything else to d
+    static void leastConn(int port, Upstream c, Upstream d, CountDownLatch hold) throws Exception {
+        try (Client held = new Client(port); Client client = new Client(port)) {
+            held.send("GET /lc/hold HTTP/1.1\r\nHost: x\r\n\r\n");
+            waitFor(() -> c.requests.size() == 1, "held request at c");
+            List<String> served = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+                served.add(client.get("/lc/" + i).text());
+            check(served.equals(List.of("d", "d", "d")), "least-conn avoids the busy upstream: " + served);
+            hold.countDown();
+            check(held.read().text().equals("c"), "held request answered");
+            served.clear();
+            for (int i = 0; i < 2; i++)
+                served.add(client.get("/lc/" + i).text());
+            check(served.contains("c") && served.contains("d"), "ties rotate again once idle: " + served);
+        }
+        check(d.connections.get() == 1, "d kept one connection: " + d.connections);
+    }
+
+    // the pooled connection dies under the second request: a GET goes again on a fresh one, a POST does not
+    static void staleRetry(int port, Upstream stale) throws IOException {
+        try (Client client = new Client(port)) {
+            check(client.get("/stale/1").status == 200, "first request");
+            Reply second = client.get("/stale/2");
+            check(second.status == 200 && second.text().equals("stale"), "GET resent after the stale connection: " + second.head);
+            check(stale.connections.get() == 2 && stale.requests.size() == 3, "sent twice, on two connections: "
+                    + stale.connections + " connections, " + stale.requests.size() + " requests");
+        }
+        try (Client client = new Client(port)) {
+            client.send("POST /stale/3 HTTP/1.1\r\nHost: x\r\nContent-Length: 0\r\n\r\n");
+            Reply post = client.read();
+            check(post.status == 502, "POST on the stale connection is not resent: " + post.head);
+            check(stale.requests.size() == 4, "POST sent once");
+        }
+    }
+
+    static void failures(int port) throws IOException {
+        try (Client client = new Client(port)) {
+            check(client.get("/down/").status == 502, "connection refused is 502");
+        }
+        long started = System.nanoTime();
+        try (Client client = new Client(port)) {
+            Reply r = client.get("/silent/");
+            long took = (System.nanoTime() - started) / 1_000_000;
+            check(r.status == 504, "read timeout is 504: " + r.head);
+            check(took < 2500, "answered at the read timeout, not when the upstream gives up: " + took + "ms");
+        }
+        started = System.nanoTime();
+        try (Client client = new Client(port)) {
+            Reply r = client.get("/blackhole/");
+            long took = (System.nanoTime() - started) / 1_000_000;
+            check(r.status == 504, "connect timeout is 504: " + r.head);
+            check(took < 2500, "answered at the connect timeout: " + took + "ms");
+        }
+    }
+
+    // request bodies relayed as they arrive (with a length and chunked), the echo comes back chunked
+    static void streamedBodies(int port, Upstream echo) throws IOException {
+        byte[] body = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(body);
+        try (Client client = new Client(port)) {
+            client.send("POST /echo/length HTTP/1.1\r\nHost: x\r\nContent-Length: " + body.length + "\r\n\r\n");
+            for (int off = 0; off < body.length; off += 64 * 1024)
+                client.out.write(body, off, Math.min(64 * 1024, body.length - off));
+            Reply r = client.read();
+            check(r.status == 200 && r.head.contains("\r\nTransfer-Encoding: chunked\r\n"), "chunked reply relayed chunked: " + r.head);
+            check(r.chunks > 1, "in more than one chunk: " + r.chunks);
+            check(java.util.Arrays.equals(r.body, body), "length-delimited body relayed intact");
+            check(echo.requests.get(0).headers.get("content-length").equals(String.valueOf(body.length)), "length passed on");
+
+            client.send("POST /echo/chunked HTTP/1.1\r\nHost: x\r\nTransfer-Encoding: chunked\r\n\r\n");
+            for (int off = 0; off < 200_000; off += 10_000)
+                client.send(Integer.toHexString(10_000) + "\r\n" + new String(body, off, 10_000, StandardCharsets.ISO_8859_1) + "\r\n");
+            client.send("0\r\n\r\n");
+            r = client.read();
+            check(r.status == 200 && java.util.Arrays.equals(r.body, java.util.Arrays.copyOf(body, 200_000)),
+                    "chunked request body relayed intact");
+            check(echo.requests.get(1).headers.get("transfer-encoding").equals("chunked"), "sent upstream chunked");
+        }
+    }
+
+    static void upstreamHeaders(int port) throws IOException {
+        try (Client client = new Client(port)) {
+            Reply r = client.get("/headers/cookies");
+            check(r.status == 200, "cookies: " + r.head);
+            check(r.head.contains("\r\nSet-Cookie: a=1; Path=/\r\nSet-Cookie: b=2, c=3; Expires=Wed, 21 Oct 2026 07:28:00 GMT\r\n"),
+                    "each Set-Cookie on its own line: " + r.head);
+            check(r.head.contains("\r\nX-Multi: 1, 2\r\n"), "other repeated fields are still joined: " + r.head);
+        }
+        for (String bad : new String[] {"duplicate", "conflicting", "list", "negative"}) {
+            try (Client client = new Client(port)) {
+                Reply r = client.get("/headers/" + bad);
+                check(r.status == 502, bad + " Content-Length is 502: " + r.head);
+            }
+        }
+    }
+
+    // the upstream takes 16 seconds, past the 15 second client idle timeout
+    static String slowUpstream(int port) {
+        try (Client client = new Client(port)) {
+            client.socket.setSoTimeout(25_000);
+            Reply r = client.get("/slow/");
+            return r.head.substring(0, r.head.indexOf("\r\n")) + " " + r.text();
+        } catch (IOException e) {
+            return e.toString();
+        }
+    }
+
+    // ---- upstream handlers
+
+    // answers with the upstream's name
+    static Handler named(String name) {
+        return (req, out, nth) -> {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + name.length() + "\r\n\r\n" + name).getBytes(StandardCharsets.ISO_8859_1));
+            return true;
+        };
+    }
+
+    static boolean echo(Request req, OutputStream out, int nth) throws IOException {
+        out.write("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        for (int off = 0; off < req.body.length; off += 50_000) {
+            int n = Math.min(50_000, req.body.length - off);
+            out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(req.body, off, n);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        return true;
+    }
+
+    static boolean headers(Request req, OutputStream out, int nth) throws IOException {
+        String head = switch (req.target) {
+            case "/headers/cookies" -> "Set-Cookie: a=1; Path=/\r\nX-Multi: 1\r\n"
+                    + "Set-Cookie: b=2, c=3; Expires=Wed, 21 Oct 2026 07:28:00 GMT\r\nX-Multi: 2\r\nContent-Length: 2\r\n";
+            case "/headers/duplicate" -> "Content-Length: 2\r\nContent-Length: 2\r\n";
+            case "/headers/conflicting" -> "Content-Length: 2\r\nContent-Length: 3\r\n";
+            case "/headers/list" -> "Content-Length: 2, 2\r\n";
+            default -> "Content-Length: -2\r\n";
+        };
+        out.write(("HTTP/1.1 200 OK\r\n" + head + "\r\nok").getBytes(StandardCharsets.ISO_8859_1));
+        return true;
+    }
+
+    // ---- helpers
+
+    interface Handler {
+        // false closes the connection
+        boolean answer(Request req, OutputStream out, int nth) throws Exception;
+    }
+
+    static final class Request {
+        String method, target;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        byte[] body;
+    }
+
+    // A blocking HTTP/1.1 server, a thread per connection; nth counts the requests on a connection.
+    static final class Upstream implements AutoCloseable {
+        final String name;
+        final ServerSocket listener;
+        final AtomicInteger connections = new AtomicInteger();
+        final List<Request> requests = Collections.synchronizedList(new ArrayList<>());
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+        Upstream(String name, Handler handler) throws IOException {
+            this.name = name;
+            this.listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread t = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket s = listener.accept();
+                        connections.incrementAndGet();
+                        sockets.add(s);
+                        Thread conn = new Thread(() -> serve(s, handler), "upstream-" + name);
+                        conn.setDaemon(true);
+                        conn.start();
+                    }
+                } catch (IOException closed) {
+                }
+            }, "upstream-" + name + "-accept");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        String address() {
+            return "127.0.0.1:" + listener.getLocalPort();
+        }
+
+        private void serve(Socket s, Handler handler) {
+            try (s) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                for (int nth = 0; ; nth++) {
+                    Request req = readRequest(in);
+                    if (req == null)
+                        return;
+                    requests.add(req);
+                    if (!handler.answer(req, out, nth))
+                        return;
+                    out.flush();
+                }
+            } catch (Exception e) {
+                // the proxy hung up
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            synchronized (sockets) {
+                for (Socket s : sockets)
+                    s.close();
+            }
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String line = readLine(in);
+        if (line == null)
+            return null;
+        Request req = new Request();
+        String[] parts = line.split(" ");
+        req.method = parts[0];
+        req.target = parts[1];
+        for (String h; !(h = readLine(in)).isEmpty(); ) {
+            int colon = h.indexOf(':');
+            req.headers.put(h.substring(0, colon).toLowerCase(Locale.ROOT), h.substring(colon + 1).trim());
+        }
+        req.body = readBody(in, req.headers);
+        return req;
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        if (headers.getOrDefault("transfer-encoding", "").contains("chunked")) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int chunks = 0;
+            while (true) {
+                int size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16);
+                if (size == 0)
+                    break;
+                body.write(in.readNBytes(size));
+                readLine(in);
+                chunks++;
+            }
+            while (!readLine(in).isEmpty()) {
+                // trailers
+            }
+            return body.toByteArray();
+        }
+        String length = headers.get("content-length");
+        return length == null ? new byte[0] : in.readNBytes(Integer.parseInt(length));
+    }
+
+    // null at EOF before the line starts
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (sb.length() == 0)
+                    return null;
+                throw new IOException("EOF in line: " + sb);
+            }
+            sb.append((char) b);
+        }
+        if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '\r')
+            throw new IOException("line without CR: " + sb);
+        return sb.substring(0, sb.length() - 1);
+    }
+
+    static final class Reply {
+        int status;
+        String head;
+        byte[] body;
+        int chunks;
+
+        String text() {
+            return new String(body, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    static final class Client implements AutoCloseable {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(5000);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        void send(String s) throws IOException {
+            out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        Reply get(String path) throws IOException {
+            send("GET " + path + " HTTP/1.1\r\nHost: x\r\n\r\n");
+            return read();
+        }
+
+        Reply read() throws IOException {
+            Reply r = new Reply();
+            StringBuilder head = new StringBuilder();
+            Map<String, String> headers = new LinkedHashMap<>();
+            String line = readLine(in);
+            if (line == null)
+                throw new IOException("connection closed before a reply");
+            r.status = Integer.parseInt(line.split(" ")[1]);
+            head.append(line).append("\r\n");
+            for (String h; !(h = readLine(in)).isEmpty(); ) {
+                head.append(h).append("\r\n");
+                int colon = h.indexOf(':');
+                headers.put(h.substring(0, colon).toLowerCase(Locale.ROOT), h.substring(colon + 1).trim());
+            }
+            r.head = head.append("\r\n").toString();
+            if (headers.getOrDefault("transfer-encoding", "").contains("chunked")) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                while (true) {
+                    int size = Integer.parseInt(readLine(in), 16);
+                    if (size == 0)
+                        break;
+                    body.write(in.readNBytes(size));
+                    readLine(in);
+                    r.chunks++;
+                }
+                check(readLine(in).isEmpty(), "chunked reply ends with an empty line");
+                r.body = body.toByteArray();
+            } else {
+                r.body = in.readNBytes(Integer.parseInt(headers.getOrDefault("content-length", "0")));
+            }
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static Upstream add(List<Upstream> all, Upstream u) {
+        all.add(u);
+        return u;
+    }
+
+    private static String route(String prefix, String balance, int connectTimeoutMs, int readTimeoutMs, Object... targets) {
+        StringBuilder sb = new StringBuilder("{\"pathPrefix\": \"" + prefix + "\", \"methods\": [\"GET\", \"POST\"], \"proxyBalance\": \""
+                + balance + "\", \"proxyConnectTimeoutMs\": " + connectTimeoutMs + ", \"proxyReadTimeoutMs\": " + readTimeoutMs
+                + ", \"proxyPass\": [");
+        for (int i = 0; i < targets.length; i++) {
+            String t = targets[i] instanceof Upstream u ? u.address() : (String) targets[i];
+            sb.append(i > 0 ? ", " : "").append('"').append(t).append('"');
+        }
+        return sb.append("]}").toString();
+    }
+
+    // connects until one times out, which leaves the listener's accept queue full
+    private static List<Socket> fill(ServerSocket listener) throws IOException {
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), listener.getLocalPort()), 200);
+                sockets.add(s);
+            } catch (SocketTimeoutException full) {
+                s.close();
+                return sockets;
+            }
+        }
+        throw new AssertionError("the listener backlog never filled");
+    }
+
+    private static void waitFor(BooleanSupplier cond, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline)
+                throw new AssertionError("timed out waiting for " + what);
+            Thread.sleep(10);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toArray(Path[]::new))
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
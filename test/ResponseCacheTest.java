@@ -0,0 +1,379 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// ResponseCache against a scripted origin: what is stored, keyed and shared, and what goes back to the origin.
+public class ResponseCacheTest {
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        applies();
+        hitAfterMiss();
+        notStored();
+        varyKeepsVariantsApart();
+        coalescesConcurrentMisses();
+        uncacheableWaitersRampUp();
+        bodilessErrorsAreShared();
+        keepsTrailers();
+        noCacheIsRevalidated();
+        staleWhileRevalidateIsConditional();
+        largeBodiesPassThrough();
+        evictsLeastRecentlyUsed();
+        System.out.println("ResponseCacheTest: " + checks + " checks passed");
+    }
+
+    static void applies() {
+        ConfigLoader.Route route = new ConfigLoader.Route();
+        route.cache = true;
+        check(ResponseCache.applies(route, request("GET", "/a")), "GET");
+        check(ResponseCache.applies(route, request("HEAD", "/a")), "HEAD");
+        check(!ResponseCache.applies(route, request("POST", "/a")), "POST");
+        HttpModels.Request auth = request("GET", "/a");
+        auth.headers.put("authorization", "Basic eDp5");
+        check(!ResponseCache.applies(route, auth), "authorized requests");
+        check(!ResponseCache.applies(null, request("GET", "/a")), "no route");
+        route.cache = false;
+        check(!ResponseCache.applies(route, request("GET", "/a")), "route without cache");
+    }
+
+    static void hitAfterMiss() {
+        Origin origin = new Origin(rq -> ok("one", "Cache-Control", "public, max-age=60"));
+        ResponseCache cache = cache(1 << 20);
+        Response first = get(cache, origin, request("GET", "/a"));
+        check("MISS".equals(first.headers.get("X-Cache")) && body(first).equals("one"), "first request is a miss");
+        Response second = get(cache, origin, request("GET", "/a"));
+        check("HIT".equals(second.headers.get("X-Cache")) && body(second).equals("one"), "second is a hit");
+        check(second.headers.containsKey("Age"), "hits carry Age");
+        check(origin.calls.size() == 1, "origin asked once");
+        get(cache, origin, request("GET", "/a", "x=1"));
+        get(cache, origin, request("HEAD", "/a"));
+        check(origin.calls.size() == 3, "query and method are part of the key");
+        check(cache.stats().hits() == 1 && cache.stats().misses() == 3, "counters");
+    }
+
+    static void notStored() {
+        String[][] uncacheable = {{"Cache-Control", "no-store, max-age=60"}, {"Cache-Control", "private, max-age=60"},
+                {"Set-Cookie", "id=1"}, {"X-Nothing", "no freshness at all"}, {"Cache-Control", "max-age=0"}};
+        for (String[] h : uncacheable) {
+            Origin origin = new Origin(rq -> {
+                Response r = ok("x", h[0], h[1]);
+                if (h[0].equals("Set-Cookie"))
+                    r.headers.put("Cache-Control", "max-age=60");
+                return r;
+            });
+            ResponseCache cache = cache(1 << 20);
+            get(cache, origin, request("GET", "/a"));
+            get(cache, origin, request("GET", "/a"));
+            check(origin.calls.size() == 2, "not stored: " + h[0] + ": " + h[1]);
+        }
+        Origin status = new Origin(rq -> {
+            Response r = ok("x", "Cache-Control", "max-age=60");
+            r.status = 302;
+            return r;
+        });
+        ResponseCache cache = cache(1 << 20);
+        get(cache, status, request("GET", "/a"));
+        get(cache, status, request("GET", "/a"));
+        check(status.calls.size() == 2, "302 not stored");
+    }
+
+    static void varyKeepsVariantsApart() {
+        Origin origin = new Origin(rq -> ok("lang=" + rq.headers.get("accept-language"),
+                "Cache-Control", "max-age=60", "Vary", "Accept-Language"));
+        ResponseCache cache = cache(1 << 20);
+        for (int i = 0; i < 2; i++) {
+            check(body(get(cache, origin, lang("en"))).equals("lang=en"), "en variant");
+            check(body(get(cache, origin, lang("fr"))).equals("lang=fr"), "fr variant");
+        }
+        check(origin.calls.size() == 2, "one origin request per variant");
+    }
+
+    static void coalescesConcurrentMisses() {
+        Origin origin = Origin.deferred();
+        ResponseCache cache = cache(1 << 20);
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            results.add(Result.of(cache.handle(request("GET", "/slow"), origin)));
+        check(origin.calls.size() == 1 && cache.stats().coalesced() == 4, "one origin request for five clients");
+        origin.complete(0, ok("shared", "Cache-Control", "max-age=60"));
+        for (Result r : results)
+            check(r.response != null && body(r.response).equals("shared"), "every waiter answered");
+        check("HIT".equals(get(cache, origin, request("GET", "/slow")).headers.get("X-Cache")), "and stored");
+    }
+
+    // an uncacheable answer releases the other waiters 1, 2, 4... at a time, not all at once
+    static void uncacheableWaitersRampUp() {
+        Origin origin = Origin.deferred();
+        ResponseCache cache = cache(1 << 20);
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            results.add(Result.of(cache.handle(request("GET", "/private"), origin)));
+        origin.complete(0, ok("for 0"));
+        check(results.get(0).response != null, "leader answered");
+        check(origin.calls.size() == 2, "one waiter released, origin calls " + origin.calls.size());
+        origin.complete(1, ok("for 1"));
+        check(origin.calls.size() == 4, "then two more, origin calls " + origin.calls.size());
+        origin.complete(2, ok("for 2"));
+        origin.complete(3, ok("for 3"));
+        check(origin.calls.size() == 8, "then the rest, origin calls " + origin.calls.size());
+        for (int i = 4; i < 8; i++)
+            origin.complete(i, ok("for " + i));
+        int answered = 0;
+        for (Result r : results)
+            answered += r.response != null ? 1 : 0;
+        check(answered == 8, "every waiter answered by its own origin request");
+        check(body(results.get(7).response).startsWith("for "), "waiters get their own responses");
+    }
+
+    static void bodilessErrorsAreShared() {
+        Origin origin = Origin.deferred();
+        ResponseCache cache = cache(1 << 20);
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++)
+            results.add(Result.of(cache.handle(request("GET", "/down"), origin)));
+        Response unavailable = new Response();
+        unavailable.status = 503;
+        origin.complete(0, unavailable);
+        for (Result r : results)
+            check(r.response != null && r.response.status == 503, "503 shared");
+        check(origin.calls.size() == 1, "a failing origin is not asked again by each waiter");
+    }
+
+    static void keepsTrailers() throws IOException {
+        Origin origin = new Origin(rq -> {
+            Response r = Response.stream(200, "OK", "text/plain", new Producer("streamed body", Map.of("X-Sum", "42")));
+            r.headers.put("Cache-Control", "max-age=60");
+            return r;
+        });
+        ResponseCache cache = cache(1 << 20);
+        for (int i = 0; i < 2; i++) {
+            Response r = get(cache, origin, request("GET", "/t"));
+            check(r.producer != null, "sent as a stream so trailers can follow");
+            check(drain(r.producer).equals("streamed body"), "body");
+            check(Map.of("X-Sum", "42").equals(r.producer.trailers()), "trailers kept");
+            check(!r.headers.containsKey("Content-Length"), "no Content-Length on a chunked replay");
+        }
+        check(origin.calls.size() == 1, "stored");
+    }
+
+    static void noCacheIsRevalidated() {
+        List<String> conditions = new ArrayList<>();
+        Origin origin = new Origin(rq -> {
+            String inm = rq.headers.get("if-none-match");
+            conditions.add(String.valueOf(inm));
+            if ("\"v1\"".equals(inm)) {
+                Response r = new Response();
+                r.status = 304;
+                r.headers.put("ETag", "\"v1\"");
+                r.headers.put("Cache-Control", "no-cache");
+                r.headers.put("X-Refreshed", "yes");
+                return r;
+            }
+            return ok("body v1", "Cache-Control", "no-cache", "ETag", "\"v1\"");
+        });
+        ResponseCache cache = cache(1 << 20);
+        check("MISS".equals(get(cache, origin, request("GET", "/nc")).headers.get("X-Cache")), "first is a miss");
+        Response again = get(cache, origin, request("GET", "/nc"));
+        check(again.status == 200 && body(again).equals("body v1"), "the stored body after a 304");
+        check("REVALIDATED".equals(again.headers.get("X-Cache")), "marked revalidated");
+        check("yes".equals(again.headers.get("X-Refreshed")), "304 headers applied");
+        check(conditions.equals(List.of("null", "\"v1\"")), "the origin is asked conditionally every time: " + conditions);
+        check(cache.stats().revalidations() == 1, "counted as a revalidation");
+
+        Origin noValidator = new Origin(rq -> ok("x", "Cache-Control", "no-cache"));
+        ResponseCache other = cache(1 << 20);
+        get(other, noValidator, request("GET", "/nc"));
+        get(other, noValidator, request("GET", "/nc"));
+        check(noValidator.calls.size() == 2 && !noValidator.calls.get(1).headers.containsKey("if-none-match"),
+                "no-cache without a validator is not kept");
+    }
+
+    static void staleWhileRevalidateIsConditional() throws InterruptedException {
+        Origin origin = new Origin(rq -> {
+            if (rq.headers.containsKey("if-modified-since")) {
+                Response r = new Response();
+                r.status = 304;
+                r.headers.put("Cache-Control", "max-age=60");
+                return r;
+            }
+            return ok("old", "Cache-Control", "max-age=1, stale-while-revalidate=30", "Last-Modified", "Mon, 01 Jan 2024 00:00:00 GMT");
+        });
+        ResponseCache cache = cache(1 << 20);
+        get(cache, origin, request("GET", "/s"));
+        Thread.sleep(1100);
+        Response stale = get(cache, origin, request("GET", "/s"));
+        check("STALE".equals(stale.headers.get("X-Cache")) && body(stale).equals("old"), "served stale");
+        check(origin.calls.size() == 2 && origin.calls.get(1).headers.containsKey("if-modified-since"), "refreshed conditionally");
+        Response fresh = get(cache, origin, request("GET", "/s"));
+        check("HIT".equals(fresh.headers.get("X-Cache")) && body(fresh).equals("old"), "304 made it fresh again");
+        check(cache.stats().equals(new ResponseCache.Stats(1, 1, 0, 1, 0)), "one miss, one stale hit, one hit: " + cache.stats());
+    }
+
+    static void largeBodiesPassThrough() throws IOException {
+        String big = "b".repeat(5000);
+        Origin origin = new Origin(rq -> {
+            Response r = Response.stream(200, "OK", "text/plain", new Producer(big, Map.of()));
+            r.headers.put("Cache-Control", "max-age=60");
+            return r;
+        });
+        ResponseCache cache = cache(1 << 20, 1000);
+        Response r = get(cache, origin, request("GET", "/big"));
+        check(drain(r.producer).equals(big), "whole body passed through");
+        get(cache, origin, request("GET", "/big"));
+        check(origin.calls.size() == 2, "over the entry limit: not stored");
+    }
+
+    static void evictsLeastRecentlyUsed() {
+        Origin origin = new Origin(rq -> ok("x".repeat(1000), "Cache-Control", "max-age=60"));
+        ResponseCache cache = cache(3000);
+        get(cache, origin, request("GET", "/1"));
+        get(cache, origin, request("GET", "/2"));
+        get(cache, origin, request("GET", "/1"));//2 is now the least recently used
+        get(cache, origin, request("GET", "/3"));
+        int before = origin.calls.size();
+        check("HIT".equals(get(cache, origin, request("GET", "/1")).headers.get("X-Cache")), "recently used entry kept");
+        check("HIT".equals(get(cache, origin, request("GET", "/3")).headers.get("X-Cache")), "newest entry kept");
+        check("MISS".equals(get(cache, origin, request("GET", "/2")).headers.get("X-Cache")), "least recently used evicted");
+        check(origin.calls.size() == before + 1, "only the evicted one went back to the origin");
+    }
+
+    // ---- helpers
+
+    private static ResponseCache cache(int bytes) {
+        return cache(bytes, 1 << 20);
+    }
+
+    private static ResponseCache cache(int bytes, int maxEntry) {
+        ConfigLoader.Config cfg = new ConfigLoader.Config();
+        cfg.errorPagesDir = "err";
+        cfg.responseCacheBytes = bytes;
+        cfg.responseCacheMaxEntryBytes = maxEntry;
+        cfg.responseCacheStaleSeconds = 10;
+        return new ResponseCache(cfg);
+    }
+
+    private static Response get(ResponseCache cache, Function<HttpModels.Request, Response> origin, HttpModels.Request req) {
+        Result r = Result.of(cache.handle(req, origin));
+        check(r.response != null, "answered synchronously");
+        return r.response;
+    }
+
+    private static HttpModels.Request request(String method, String path) {
+        return request(method, path, "");
+    }
+
+    private static HttpModels.Request request(String method, String path, String query) {
+        HttpModels.Request r = new HttpModels.Request();
+        r.method = method;
+        r.path = path;
+        r.query = query;
+        r.target = query.isEmpty() ? path : path + "?" + query;
+        r.version = "HTTP/1.1";
+        return r;
+    }
+
+    private static HttpModels.Request lang(String lang) {
+        HttpModels.Request r = request("GET", "/v");
+        r.headers.put("accept-language", lang);
+        return r;
+    }
+
+    private static Response ok(String body, String... headers) {
+        Response r = Response.text(200, "OK", "text/plain", body);
+        for (int i = 0; i < headers.length; i += 2)
+            r.headers.put(headers[i], headers[i + 1]);
+        return r;
+    }
+
+    private static String body(Response r) {
+        return new String(r.body, StandardCharsets.UTF_8);
+    }
+
+    private static String drain(Response.BodyProducer p) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(700);
+        boolean more;
+        do {
+            buf.clear();
+            more = p.produce(buf);
+            out.write(buf.array(), 0, buf.position());
+        } while (more);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    // records every request; deferred origins answer later through complete(i, response)
+    private static final class Origin implements Function<HttpModels.Request, Response> {
+        final List<HttpModels.Request> calls = new ArrayList<>();
+        final List<Response.Pending> pendings = new ArrayList<>();
+        private final Function<HttpModels.Request, Response> answer;
+
+        Origin(Function<HttpModels.Request, Response> answer) {
+            this.answer = answer;
+        }
+
+        static Origin deferred() {
+            return new Origin(null);
+        }
+
+        @Override
+        public Response apply(HttpModels.Request req) {
+            calls.add(req);
+            if (answer != null)
+                return answer.apply(req);
+            Response.Pending p = new Response.Pending();
+            pendings.add(p);
+            return Response.pending(p);
+        }
+
+        void complete(int i, Response r) {
+            pendings.get(i).complete(r);
+        }
+    }
+
+    private static final class Result {
+        Response response;
+
+        static Result of(Response r) {
+            Result res = new Result();
+            if (r.pending != null)
+                r.pending.onComplete(done -> res.response = done);
+            else
+                res.response = r;
+            return res;
+        }
+    }
+
+    private static final class Producer implements Response.BodyProducer {
+        private final ByteBuffer body;
+        private final Map<String, String> trailers;
+
+        Producer(String body, Map<String, String> trailers) {
+            this.body = ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8));
+            this.trailers = trailers;
+        }
+
+        @Override
+        public boolean produce(ByteBuffer out) {
+            int n = Math.min(out.remaining(), body.remaining());
+            out.put(body.slice(body.position(), n));
+            body.position(body.position() + n);
+            return body.hasRemaining();
+        }
+
+        @Override
+        public Map<String, String> trailers() {
+            return trailers;
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
@@ -0,0 +1,197 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// The bytes ResponseEncoder writes: response heads (status lines, default headers, the cached Date line) and
+// the chunked body framing.
+public class ResponseEncoderTest {
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        statusLines();
+        defaultHeaders();
+        headerText();
+        dateLine();
+        largeHeads();
+        chunks();
+        lastChunk();
+        System.out.println("ResponseEncoderTest: " + checks + " checks passed");
+    }
+
+    static void statusLines() {
+        check(statusLine(200, null).equals("HTTP/1.1 200 OK"), "200 from the table");
+        check(statusLine(404, "Not Found").equals("HTTP/1.1 404 Not Found"), "404 from the table");
+        check(statusLine(503, null).equals("HTTP/1.1 503 Service Unavailable"), "503 from the table");
+        check(statusLine(200, "Fine").equals("HTTP/1.1 200 Fine"), "a handler's own reason wins over the table");
+        check(statusLine(418, "I'm a teapot").equals("HTTP/1.1 418 I'm a teapot"), "code outside the table");
+        check(statusLine(299, null).equals("HTTP/1.1 299 Unknown"), "no reason for an unknown code");
+        check(statusLine(999, "Custom").equals("HTTP/1.1 999 Custom"), "code past the table");
+        check(statusLine(100, null).equals("HTTP/1.1 100 Continue"), "1xx");
+        for (int code : new int[] {101, 204, 301, 308, 429, 431, 505})
+            check(statusLine(code, null).equals("HTTP/1.1 " + code + " " + ResponseEncoder.reasonPhrase(code)), "status " + code);
+    }
+
+    static void defaultHeaders() {
+        Response r = Response.text(200, "OK", "text/plain", "hello");
+        String head = head(r);
+        check(head.contains("\r\nContent-Type: text/plain; charset=utf-8\r\n"), "handler headers");
+        check(head.contains("\r\nContent-Length: 5\r\n"), "Content-Length from the body");
+        check(head.contains("\r\nConnection: keep-alive\r\n"), "keep-alive by default");
+        check(head.contains("\r\nServer: LocalServer/1.0\r\n"), "Server");
+        check(head.contains("\r\nDate: "), "Date");
+        check(head.endsWith("\r\n\r\n"), "blank line ends the head");
+
+        r.closeAfterWrite = true;
+        r.headers.put("Server", "other");
+        r.headers.put("Content-Length", "5");
+        head = head(r);
+        check(head.contains("\r\nConnection: close\r\n") && !head.contains("keep-alive"), "close");
+        check(!head.contains("LocalServer") && count(head, "Content-Length") == 1, "handler headers are not repeated");
+
+        r.addRepeatedHeader("Set-Cookie", "a=1");
+        r.addRepeatedHeader("Set-Cookie", "b=2, c=3");
+        check(head(r).contains("\r\nSet-Cookie: a=1\r\nSet-Cookie: b=2, c=3\r\n"), "repeated fields one line each");
+
+        Response streamed = Response.stream(200, "OK", "text/plain", out -> false);
+        head = head(streamed);
+        check(head.contains("\r\nTransfer-Encoding: chunked\r\n") && !head.contains("Content-Length"), "chunked without a length");
+        streamed.headers.put("Content-Length", "0");
+        check(!head(streamed).contains("Transfer-Encoding"), "a producer with a length is not chunked");
+    }
+
+    // header text is ISO-8859-1: Latin-1 letters are one byte each, anything else becomes '?'
+    static void headerText() {
+        Response r = Response.text(200, "OK", "text/plain", "");
+        r.headers.put("X-Name", "caf\u00e9 \u2603 \ud83d\ude00");
+        ByteBuffer out = ResponseEncoder.encodeHead(r);
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        byte[] expected = "X-Name: caf\u00e9 ? ??\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        check(indexOf(bytes, expected) >= 0, "non-Latin-1 characters become '?'");
+        check(indexOf(bytes, new byte[] {'c', 'a', 'f', (byte) 0xe9}) >= 0, "e acute is the single byte 0xe9");
+        check(ResponseEncoder.encodeHead(r).remaining() == bytes.length, "same length every time");
+        r.reason = "D\u00e9j\u00e0 vu \u2713";
+        check(statusLine(r).equals("HTTP/1.1 200 D\u00e9j\u00e0 vu ?"), "the reason is encoded the same way");
+    }
+
+    // regenerated once per second, the same array within a second
+    static void dateLine() throws InterruptedException {
+        DateTimeFormatter imf = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+        long second;
+        byte[] first, again;
+        do {//retried when a second boundary falls in between
+            second = System.currentTimeMillis() / 1000;
+            first = ResponseEncoder.dateLine();
+            again = ResponseEncoder.dateLine();
+        } while (System.currentTimeMillis() / 1000 != second);
+        String line = new String(first, StandardCharsets.ISO_8859_1);
+        check(line.matches("Date: (Mon|Tue|Wed|Thu|Fri|Sat|Sun), \\d\\d [A-Z][a-z]{2} \\d{4} \\d\\d:\\d\\d:\\d\\d GMT\r\n"),
+                "IMF-fixdate: " + line);
+        check(line.equals("Date: " + imf.format(Instant.ofEpochSecond(second)) + "\r\n"), "the current second: " + line);
+        check(again == first, "cached within the second");
+        while (System.currentTimeMillis() / 1000 == second)
+            Thread.sleep(20);
+        String next = new String(ResponseEncoder.dateLine(), StandardCharsets.ISO_8859_1);
+        check(!next.equals(line), "refreshed in the next second: " + next);
+        check(head(Response.text(200, "OK", "text/plain", "")).contains(next) || System.currentTimeMillis() / 1000 > second + 1,
+                "heads carry the cached line");
+    }
+
+    // heads that do not fit a pooled buffer still come out whole
+    static void largeHeads() {
+        Response r = Response.text(200, "OK", "text/plain", "");
+        String big = "v".repeat(20_000);
+        r.headers.put("X-Big", big);
+        String head = head(r);
+        check(head.startsWith("HTTP/1.1 200 OK\r\n") && head.contains("X-Big: " + big + "\r\n") && head.endsWith("\r\n\r\n"),
+                "oversized head");
+    }
+
+    // a producer's data at [CHUNK_HEADER_RESERVE, position) framed in place, in the pooled body buffer
+    static void chunks() {
+        int max = 16 * 1024 - ResponseEncoder.CHUNK_HEADER_RESERVE - ResponseEncoder.CHUNK_TRAILER_RESERVE;
+        for (int n : new int[] {1, 9, 10, 15, 16, 255, 256, 4095, 4096, max}) {
+            ByteBuffer buf = Response.BODY_POOL.acquire();
+            buf.position(ResponseEncoder.CHUNK_HEADER_RESERVE);
+            buf.limit(buf.capacity() - ResponseEncoder.CHUNK_TRAILER_RESERVE);
+            for (int i = 0; i < n; i++)
+                buf.put((byte) ('a' + i % 26));
+            ByteBuffer framed = ResponseEncoder.frameChunk(buf);
+            check(framed == buf, "framed in place");
+            String chunk = string(framed);
+            String size = Integer.toHexString(n);
+            check(chunk.startsWith(size + "\r\n"), n + ": size line " + size);
+            check(chunk.length() == size.length() + 2 + n + 2 && chunk.endsWith("\r\n"), n + ": data then CRLF");
+            check(chunk.charAt(size.length() + 2) == 'a' && chunk.charAt(size.length() + 1 + n) == (char) ('a' + (n - 1) % 26),
+                    n + ": data intact");
+            Response.BODY_POOL.release(buf);
+        }
+        check(Integer.toHexString(max).length() + 2 <= ResponseEncoder.CHUNK_HEADER_RESERVE, "the reserve fits the largest size line");
+    }
+
+    static void lastChunk() {
+        check(string(ResponseEncoder.lastChunk(Map.of())).equals("0\r\n\r\n"), "zero-length last chunk");
+        Map<String, String> trailers = new LinkedHashMap<>();
+        trailers.put("X-Checksum", "abc123");
+        trailers.put("Server-Timing", "db;dur=53");
+        check(string(ResponseEncoder.lastChunk(trailers)).equals("0\r\nX-Checksum: abc123\r\nServer-Timing: db;dur=53\r\n\r\n"),
+                "trailer fields between the last chunk and the final CRLF");
+        String big = "t".repeat(10_000);
+        check(string(ResponseEncoder.lastChunk(Map.of("X-Big", big))).equals("0\r\nX-Big: " + big + "\r\n\r\n"),
+                "trailers larger than a pooled buffer");
+    }
+
+    private static String string(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String statusLine(int status, String reason) {
+        Response r = new Response();
+        r.status = status;
+        r.reason = reason;
+        return statusLine(r);
+    }
+
+    private static String statusLine(Response r) {
+        String head = head(r);
+        return head.substring(0, head.indexOf("\r\n"));
+    }
+
+    private static String head(Response r) {
+        ByteBuffer out = ResponseEncoder.encodeHead(r);
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1))
+            n++;
+        return n;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++)
+                if (haystack[i + j] != needle[j])
+                    continue outer;
+            return i;
+        }
+        return -1;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
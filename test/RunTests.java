@@ -0,0 +1,19 @@
+// Runs every test class in turn; each throws on its first failed check.
+public class RunTests {
+    public static void main(String[] args) throws Exception {
+        HpackTest.main(args);
+        Http2Test.main(args);
+        MultipartTest.main(args);
+        utils.TokenBucketsTest.main(args);
+        TlsTest.main(args);
+        utils.PathUtilTest.main(args);
+        ResponseCacheTest.main(args);
+        AdmissionTest.main(args);
+        ResponseEncoderTest.main(args);
+        utils.BufferPoolTest.main(args);
+        StreamingTest.main(args);
+        ProxyTest.main(args);
+        JfrTest.main(args);
+        System.out.println("all tests passed");
+    }
+}
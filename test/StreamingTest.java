@@ -0,0 +1,162 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Streamed response bodies on a live server: a chunked directory listing followed by a pipelined request on
+// the same connection, and a file that shrinks mid-body cutting the connection without stalling the server.
+public class StreamingTest {
+    private static final int FILES = 1500;
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("streaming");
+        try {
+            Path www = Files.createDirectories(dir.resolve("www"));
+            Path list = Files.createDirectories(www.resolve("list"));
+            for (int i = 0; i < FILES; i++)
+                Files.writeString(list.resolve(String.format("file-with-a-fairly-long-name-%05d.txt", i)), "x");
+            int port = freePort();
+            Path config = dir.resolve("config.json");
+            Files.writeString(config, "{\"host\": \"127.0.0.1\", \"ports\": [" + port + "], \"routes\": [{\"pathPrefix\": \"/\","
+                    + " \"root\": \"" + www + "\", \"methods\": [\"GET\"], \"dirListing\": true}]}");
+            ConfigLoader.Config cfg = ConfigLoader.load(config);
+            Server server = new Server(cfg, new Router(cfg));
+            server.listen();
+            Thread t = new Thread(() -> {
+                try {
+                    server.run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "streaming-test-server");
+            t.setDaemon(true);
+            t.start();
+
+            chunkedListing(port);
+            shrinkingFile(port, www.resolve("big.bin"));
+        } finally {
+            delete(dir);
+        }
+        System.out.println("StreamingTest: " + checks + " checks passed");
+    }
+
+    static void chunkedListing(int port) throws IOException {
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            OutputStream out = s.getOutputStream();
+            // the second request waits behind the streamed first one
+            out.write(("GET /list/ HTTP/1.1\r\nHost: x\r\n\r\n"
+                    + "GET /list/file-with-a-fairly-long-name-00007.txt HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = s.getInputStream();
+            String head = readHead(in);
+            check(head.startsWith("HTTP/1.1 200 OK\r\n"), "listing answered: " + head);
+            check(head.contains("\r\nTransfer-Encoding: chunked\r\n") && !head.contains("Content-Length"), "sent chunked");
+            check(head.contains("\r\nConnection: keep-alive\r\n"), "connection kept");
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int chunks = 0;
+            while (true) {
+                String sizeLine = readLine(in);
+                int size = Integer.parseInt(sizeLine, 16);
+                if (size == 0)
+                    break;
+                chunks++;
+                body.write(in.readNBytes(size));
+                check(readLine(in).isEmpty(), "CRLF after chunk " + chunks);
+            }
+            check(readLine(in).isEmpty(), "no trailers, the final CRLF");
+            String html = body.toString(StandardCharsets.UTF_8);
+            check(chunks > 1, "more than one chunk: " + chunks);
+            check(html.startsWith("<html>") && html.endsWith("</ul></body></html>\n"), "whole listing");
+            int entries = html.split("<li>", -1).length - 1;
+            check(entries == FILES, "every entry listed: " + entries);
+
+            String next = new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+            check(next.startsWith("HTTP/1.1 200 OK\r\n") && next.contains("\r\nContent-Length: 1\r\n") && next.endsWith("\r\n\r\nx"),
+                    "pipelined request answered after the stream: " + next);
+        }
+    }
+
+    // The client reads slowly enough that the file is truncated under the producer; the connection is cut
+    // (the head promised more bytes) and the server keeps serving.
+    static void shrinkingFile(int port, Path file) throws Exception {
+        long size = 32L * 1024 * 1024;
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+            f.setLength(size);
+        }
+        long received;
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            s.setReceiveBufferSize(64 * 1024);
+            s.getOutputStream().write("GET /big.bin HTTP/1.1\r\nHost: x\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = s.getInputStream();
+            String head = readHead(in);
+            check(head.contains("\r\nContent-Length: " + size + "\r\n"), "streamed with its length: " + head);
+            try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) {
+                f.setLength(1024 * 1024);
+            }
+            received = in.transferTo(OutputStream.nullOutputStream());
+        }
+        check(received < size, "body cut short: " + received + " of " + size);
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            s.getOutputStream().write("GET /list/file-with-a-fairly-long-name-00001.txt HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            check(new String(s.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1).startsWith("HTTP/1.1 200 "),
+                    "server still serving");
+        }
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                throw new AssertionError("EOF in head: " + sb);
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                throw new AssertionError("EOF in line: " + sb);
+            sb.append((char) b);
+        }
+        if (sb.length() == 0 || sb.charAt(sb.length() - 1) != '\r')
+            throw new AssertionError("line without CR: " + sb);
+        return sb.substring(0, sb.length() - 1);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toArray(Path[]::new))
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
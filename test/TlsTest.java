@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+// A server on a TLS port with a throwaway self-signed PKCS12 keystore (made with the JDK's keytool): ALPN,
+// a request over TLS, session resumption on TLS 1.2 and 1.3, and the JVM-wide session ticket switch.
+public class TlsTest {
+    private static final String PASSWORD = "changeit";
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("tls");
+        try {
+            Path keystore = dir.resolve("ks.p12");
+            keytool(keystore);
+            Files.createDirectories(dir.resolve("www"));
+            Files.writeString(dir.resolve("www/index.html"), "hello over tls");
+            int port = freePort();
+            Path config = dir.resolve("config.json");
+            Files.writeString(config, "{\"host\": \"127.0.0.1\", \"ports\": [], \"tls\": [{\"port\": " + port
+                    + ", \"keystore\": \"" + keystore + "\", \"keystorePassword\": \"" + PASSWORD + "\"}],"
+                    + " \"routes\": [{\"pathPrefix\": \"/\", \"root\": \"" + dir.resolve("www") + "\", \"methods\": [\"GET\"]}]}");
+            ConfigLoader.Config cfg = ConfigLoader.load(config);
+            Thread server = new Thread(() -> {
+                try {
+                    new Server(cfg, new Router(cfg)).run();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "tls-test-server");
+            server.setDaemon(true);
+            server.start();
+            waitForPort(port);
+
+            SSLContext client = clientContext(keystore);
+            alpn(client, port);
+            request(client, port);
+            resumption(keystore, port, "TLSv1.2");
+            resumption(keystore, port, "TLSv1.3");
+            ticketSwitch(cfg, dir, keystore);
+        } finally {
+            delete(dir);
+        }
+        System.out.println("TlsTest: " + checks + " checks passed");
+    }
+
+    static void alpn(SSLContext client, int port) throws IOException {
+        try (SSLSocket s = connect(client, port, null, "h2", "http/1.1")) {
+            s.startHandshake();
+            check("h2".equals(s.getApplicationProtocol()), "h2 preferred when offered, got " + s.getApplicationProtocol());
+        }
+        try (SSLSocket s = connect(client, port, null, "http/1.1")) {
+            s.startHandshake();
+            check("http/1.1".equals(s.getApplicationProtocol()), "http/1.1 when only that is offered");
+        }
+    }
+
+    static void request(SSLContext client, int port) throws IOException {
+        try (SSLSocket s = connect(client, port, null, "http/1.1")) {
+            String response = get(s);
+            check(response.startsWith("HTTP/1.1 200"), "200 over TLS");
+            check(response.endsWith("hello over tls"), "body over TLS");
+        }
+    }
+
+    // a second connection from the same client context resumes the first one's session
+    static void resumption(Path keystore, int port, String protocol) throws Exception {
+        SSLContext client = clientContext(keystore);
+        SSLSession first;
+        try (SSLSocket s = connect(client, port, protocol, "http/1.1")) {
+            get(s);//TLS 1.3 tickets arrive after the handshake
+            first = s.getSession();
+        }
+        check(protocol.equals(first.getProtocol()), protocol + " negotiated");
+        SSLSession second;
+        try (SSLSocket s = connect(client, port, protocol, "http/1.1")) {
+            check(get(s).startsWith("HTTP/1.1 200"), "200 on the resumed " + protocol + " connection");
+            second = s.getSession();
+        }
+        check(resumed(first, second), protocol + " session resumed");
+        // a fresh client context has nothing to resume
+        try (SSLSocket s = connect(clientContext(keystore), port, protocol, "http/1.1")) {
+            get(s);
+            check(!resumed(first, s.getSession()), protocol + " fresh client makes a full handshake");
+        }
+    }
+
+    static void ticketSwitch(ConfigLoader.Config cfg, Path dir, Path keystore) throws Exception {
+        ConfigLoader.Config off = new ConfigLoader.Config();
+        off.tlsSessionTickets = !cfg.tlsSessionTickets;
+        boolean rejected = false;
+        try {
+            TlsConnection.configureJsse(off);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check(rejected, "a second, conflicting ticket setting in the same JVM");
+        TlsConnection.configureJsse(cfg);//the same setting again is fine
+        check(true, "same setting accepted");
+
+        Path config = dir.resolve("conflict.json");
+        Files.writeString(config, "{\"ports\": [], \"tlsSessionTickets\": true, \"tls\": [{\"port\": 1, \"keystore\": \""
+                + keystore + "\", \"sessionTickets\": false}], \"routes\": []}");
+        rejected = false;
+        try {
+            ConfigLoader.load(config);
+        } catch (IllegalArgumentException e) {
+            rejected = true;
+        }
+        check(rejected, "per-port sessionTickets that disagrees with tlsSessionTickets");
+    }
+
+    // JSSE hands a resumed TLS 1.2 session back under the same id; a TLS 1.3 resumption keeps the original
+    // session's creation time
+    private static boolean resumed(SSLSession a, SSLSession b) {
+        if ("TLSv1.2".equals(a.getProtocol()))
+            return a.getId().length > 0 && Arrays.equals(a.getId(), b.getId());
+        return a.getCreationTime() == b.getCreationTime();
+    }
+
+    private static SSLSocket connect(SSLContext client, int port, String protocol, String... alpn) throws IOException {
+        SSLSocket s = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", port);
+        s.setSoTimeout(5000);
+        SSLParameters params = s.getSSLParameters();
+        params.setApplicationProtocols(alpn);
+        if (protocol != null)
+            params.setProtocols(new String[]{protocol});
+        s.setSSLParameters(params);
+        return s;
+    }
+
+    private static String get(Socket s) throws IOException {
+        OutputStream out = s.getOutputStream();
+        out.write("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        InputStream in = s.getInputStream();
+        return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    // trusts the server's own self-signed certificate
+    private static SSLContext clientContext(Path keystore) throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            ks.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    private static void keytool(Path keystore) throws Exception {
+        Process p = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "server", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-validity", "2", "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD).redirectErrorStream(true).start();
+        String output = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (p.waitFor() != 0)
+            throw new IllegalStateException("keytool failed: " + output);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("server did not start on " + port);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : s.sorted(Comparator.reverseOrder()).toArray(Path[]::new))
+                Files.deleteIfExists(p);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
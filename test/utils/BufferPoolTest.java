@@ -0,0 +1,95 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// BufferPool reuse, which buffers a pool takes back, and two threads sharing one pool.
+public class BufferPoolTest {
+    private static int checks;
+
+    public static void main(String[] args) throws Exception {
+        reuse();
+        foreignBuffersAreIgnored();
+        recycleFindsThePoolBySize();
+        boundedFreeList();
+        sharedBetweenThreads();
+        System.out.println("BufferPoolTest: " + checks + " checks passed");
+    }
+
+    static void reuse() {
+        BufferPool pool = new BufferPool(1001, 4);
+        ByteBuffer a = pool.acquire();
+        check(a.isDirect() && a.capacity() == 1001 && a.position() == 0 && a.limit() == 1001, "fresh direct buffer");
+        a.put((byte) 1).limit(10);
+        pool.release(a);
+        ByteBuffer b = pool.acquire();
+        check(b == a, "released buffer handed out again");
+        check(b.position() == 0 && b.limit() == 1001, "and cleared");
+        check(pool.acquire() != a, "but only once");
+    }
+
+    static void foreignBuffersAreIgnored() {
+        BufferPool pool = new BufferPool(1002, 4);
+        ByteBuffer direct = ByteBuffer.allocateDirect(1002);
+        pool.release(ByteBuffer.allocate(1002));
+        pool.release(direct.asReadOnlyBuffer());
+        pool.release(ByteBuffer.allocateDirect(1003));
+        check(pool.acquire() != direct, "heap, read-only and other sizes are not pooled");
+        check(pool.owns(direct) && !pool.owns(ByteBuffer.allocate(1002)), "owns goes by kind and size");
+    }
+
+    static void recycleFindsThePoolBySize() {
+        BufferPool small = new BufferPool(1004, 4);
+        BufferPool large = new BufferPool(2004, 4);
+        ByteBuffer s = small.acquire(), l = large.acquire();
+        BufferPool.recycle(l);
+        BufferPool.recycle(s);
+        BufferPool.recycle(ByteBuffer.wrap(new byte[1004]));
+        check(small.acquire() == s, "small buffer back in the small pool");
+        check(large.acquire() == l, "large buffer back in the large pool");
+    }
+
+    static void boundedFreeList() {
+        BufferPool pool = new BufferPool(1005, 2);
+        ByteBuffer[] lent = {pool.acquire(), pool.acquire(), pool.acquire()};
+        for (ByteBuffer b : lent)
+            pool.release(b);
+        Set<ByteBuffer> again = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 3; i++)
+            again.add(pool.acquire());
+        int reused = 0;
+        for (ByteBuffer b : lent)
+            reused += again.contains(b) ? 1 : 0;
+        check(reused == 2, "only maxPooled buffers kept, reused " + reused);
+    }
+
+    // a buffer is never lent to two threads at once
+    static void sharedBetweenThreads() throws InterruptedException {
+        BufferPool pool = new BufferPool(1006, 8);
+        Set<ByteBuffer> out = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        boolean[] duplicate = new boolean[1];
+        Runnable work = () -> {
+            for (int i = 0; i < 20_000; i++) {
+                ByteBuffer b = pool.acquire();
+                if (!out.add(b))
+                    duplicate[0] = true;
+                out.remove(b);
+                pool.release(b);
+            }
+        };
+        Thread t1 = new Thread(work), t2 = new Thread(work);
+        t1.start();
+        t2.start();
+        t1.join();
+        t2.join();
+        check(!duplicate[0], "no buffer lent twice");
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
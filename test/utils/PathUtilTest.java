@@ -0,0 +1,67 @@
+package utils;
+
+// PathUtil.normalizePath: dot segments, slashes, percent-decoding and rejected targets.
+public class PathUtilTest {
+    private static int checks;
+
+    public static void main(String[] args) {
+        String[][] cases = {
+                {"/", "/"},
+                {"/index.html", "/index.html"},
+                {"//a///b", "/a/b"},
+                {"/a/b/", "/a/b/"},
+                {"/a/./b/../c", "/a/c"},
+                {"/a/b/..", "/a/"},
+                {"/a/.", "/a/"},
+                {"/..", "/"},
+                {"/../../etc/passwd", "/etc/passwd"},
+                {"/a/..b/c..", "/a/..b/c.."},
+                {"/.hidden/...", "/.hidden/..."},
+                // decoding
+                {"/%61%62c", "/abc"},
+                {"/a%20b", "/a b"},
+                {"/%7euser/%7Eother", "/~user/~other"},
+                {"/caf%C3%A9", "/caf\u00e9"},
+                // decoded dots and slashes are resolved like literal ones, so they cannot reach above the root
+                {"/a%2Fb", "/a/b"},
+                {"/a/%2e%2e/b", "/b"},
+                {"/%2e%2e%2f%2e%2e%2fetc", "/etc"},
+                {"/a%2f..%2F..%2f..", "/"},
+                // absolute form
+                {"http://example.com/a/../b", "/b"},
+                {"https://example.com:8443//x", "/x"},
+                {"http://example.com", "/"},
+        };
+        for (String[] c : cases)
+            expect(c[0], c[1]);
+
+        String[] rejected = {"", "a/b", "*", "/%", "/%4", "/%zz", "/a%g0", "/%00", "/nul\0", "/\u0100"};
+        for (String t : rejected)
+            expect(t, null);
+
+        // only the part before end counts: the caller passes the position of '?'
+        String target = "/a/../b?x=/../..";
+        check("/b".equals(PathUtil.normalizePath(target, target.indexOf('?'))), "query excluded");
+        check("/".equals(PathUtil.normalizePath("http://h?x", 8)), "absolute form without a path");
+
+        // longer than the initial scratch buffer, and a short one after it
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append("/seg").append(i);
+        String longPath = sb.toString();
+        expect(longPath + "/./x/..", longPath + "/");
+        expect("/short", "/short");
+        System.out.println("PathUtilTest: " + checks + " checks passed");
+    }
+
+    private static void expect(String target, String normalized) {
+        String got = PathUtil.normalizePath(target, target.length());
+        check(normalized == null ? got == null : normalized.equals(got), target + " -> " + normalized + ", got " + got);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}
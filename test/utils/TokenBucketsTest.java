@@ -0,0 +1,95 @@
+package utils;
+
+// TokenBuckets refill arithmetic, key isolation, and what a key inherits when its slot is recycled.
+public class TokenBucketsTest {
+    private static int checks;
+
+    public static void main(String[] args) {
+        burstThenRate();
+        keysAreIndependent();
+        evictionDoesNotGrantAFreshBurst();
+        sweepDropsRefilledBuckets();
+        rejectsBadLimits();
+        System.out.println("TokenBucketsTest: " + checks + " checks passed");
+    }
+
+    static void burstThenRate() {
+        TokenBuckets b = new TokenBuckets(10, 3, 64);
+        for (int i = 0; i < 3; i++)
+            check(b.tryAcquire(42, 1000), "burst token " + i);
+        check(!b.tryAcquire(42, 1000), "empty after the burst");
+        check(!b.tryAcquire(42, 1099), "not refilled after 99ms at 10/s");
+        check(b.tryAcquire(42, 1100), "one token after 100ms");
+        check(!b.tryAcquire(42, 1100), "and only one");
+        check(!b.tryAcquire(42, 1150) && b.tryAcquire(42, 1200), "partial refills add up");
+        check(b.tryAcquire(42, 60_000) && b.tryAcquire(42, 60_000) && b.tryAcquire(42, 60_000), "full after a long idle");
+        check(!b.tryAcquire(42, 60_000), "but never above the burst");
+        check(!b.tryAcquire(42, 59_000), "a clock going backwards adds nothing");
+    }
+
+    static void keysAreIndependent() {
+        TokenBuckets b = new TokenBuckets(1, 1, 1024);
+        int first = 0, second = 0;
+        for (long k = 1; k <= 200; k++)
+            first += b.tryAcquire(k, 0) ? 1 : 0;
+        for (long k = 1; k <= 200; k++)
+            second += b.tryAcquire(k, 0) ? 1 : 0;
+        check(first == 200, "each key has its own token");
+        check(second == 0, "and only one");
+        check(b.evictions() == 0, "no evictions below the table size");
+    }
+
+    // With every slot of a tiny table holding a drained bucket, a new key has to take one of them over.
+    static void evictionDoesNotGrantAFreshBurst() {
+        TokenBuckets b = new TokenBuckets(1, 5, 8);
+        for (long k = 1; k <= 8; k++)
+            for (int i = 0; i < 5; i++)
+                b.tryAcquire(k, 0);
+        check(!b.tryAcquire(100, 0), "new key inherits an empty bucket");
+        check(b.evictions() == 1, "one eviction");
+        check(!b.tryAcquire(101, 500), "still empty half a second later");
+        check(b.tryAcquire(102, 1000), "the displaced bucket's refill carries over");
+        check(!b.tryAcquire(102, 1000), "one second refills one token");
+        // buckets idle long enough to be full again hand over a full burst
+        TokenBuckets idle = new TokenBuckets(1, 5, 8);
+        for (long k = 1; k <= 8; k++)
+            for (int i = 0; i < 5; i++)
+                idle.tryAcquire(k, 0);
+        int granted = 0;
+        while (idle.tryAcquire(200, 10_000))
+            granted++;
+        check(granted == 5, "full burst from a refilled slot, got " + granted);
+    }
+
+    static void sweepDropsRefilledBuckets() {
+        TokenBuckets b = new TokenBuckets(1, 2, 8);
+        for (long k = 1; k <= 8; k++)
+            b.tryAcquire(k, 0);
+        b.sweep(1000);
+        b.tryAcquire(100, 1000);
+        check(b.evictions() == 1, "buckets not yet refilled survive the sweep");
+        TokenBuckets c = new TokenBuckets(1, 2, 8);
+        for (long k = 1; k <= 8; k++)
+            c.tryAcquire(k, 0);
+        c.sweep(5000);
+        check(c.tryAcquire(100, 5000) && c.evictions() == 0, "swept slots are reused without eviction");
+    }
+
+    static void rejectsBadLimits() {
+        for (int[] bad : new int[][]{{0, 1}, {1, 0}, {-1, 5}}) {
+            boolean rejected = false;
+            try {
+                new TokenBuckets(bad[0], bad[1], 16);
+            } catch (IllegalArgumentException e) {
+                rejected = true;
+            }
+            check(rejected, "rate " + bad[0] + " burst " + bad[1]);
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+        checks++;
+    }
+}